@@ -0,0 +1,210 @@
+package io.siggi.simplehttpproxy;
+
+import io.siggi.simplehttpproxy.io.SecureBufferedInputStream;
+import io.siggi.simplehttpproxy.util.HeaderParser;
+import io.siggi.simplehttpproxy.util.HttpHeader;
+import io.siggi.simplehttpproxy.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rough timings of route lookup and header parsing, each next to what it
+ * replaced. It uses package private classes, so it's compiled against the
+ * proxy rather than run as a single file program:
+ * <pre>
+ * mvn -B package
+ * javac -cp target/SimpleHttpProxy.jar -d target/benchmarks scripts/Benchmarks.java
+ * java -cp target/SimpleHttpProxy.jar:target/benchmarks io.siggi.simplehttpproxy.Benchmarks
+ * </pre>
+ * Route lookup is timed with 10, 100 and 10,000 routes, through RoutingIndex
+ * and through the linear scan over ForwardingSettings.match that it
+ * replaced; both are checked to pick the same route first. Header parsing is
+ * timed for a browser request header with the line by line readCRLF and
+ * readHeaders that Util.readHeader used before, with Util.readHeader on an
+ * unbuffered stream, and with one HeaderParser reused on a
+ * SecureBufferedInputStream the way connections use it.
+ * <p>
+ * Every case is warmed up and then timed in a few rounds, and the best round
+ * is printed in nanoseconds per operation. Run it on an otherwise idle
+ * machine and compare numbers from the same run only.
+ */
+public class Benchmarks {
+
+    private static final long roundNanos = 500_000_000L;
+    private static final int rounds = 5;
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        for (int routes : new int[]{10, 100, 10000}) {
+            routing(routes);
+        }
+        headers();
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        int run(int i) throws Exception;
+    }
+
+    private static void time(String name, Operation operation) throws Exception {
+        // warm up
+        measure(operation);
+        measure(operation);
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < rounds; i++) {
+            best = Math.min(best, measure(operation));
+        }
+        System.out.printf("%-50s %10.1f ns/op%n", name, best);
+    }
+
+    private static double measure(Operation operation) throws Exception {
+        int result = 0;
+        long count = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 1000; i++) {
+                result += operation.run(i);
+            }
+            count += 1000;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < roundNanos);
+        sink += result;
+        return (double) elapsed / count;
+    }
+
+    private static void routing(int routeCount) throws Exception {
+        Random random = new Random(routeCount);
+        List<ForwardingSettings> settingsList = new ArrayList<>();
+        for (int i = 0; i < routeCount; i++) {
+            switch (i % 4) {
+                case 0:
+                    settingsList.add(new ForwardingSettings("site" + i + ".example.com", 0));
+                    break;
+                case 1:
+                    settingsList.add(new ForwardingSettings("site" + i + ".example.com/api/,site" + i + ".example.com/static/", 0));
+                    break;
+                case 2:
+                    settingsList.add(new ForwardingSettings("*.tenant" + i + ".example.net", 0));
+                    break;
+                default:
+                    settingsList.add(new ForwardingSettings("app" + i + ".example.org:" + (8000 + i % 3), 0));
+                    break;
+            }
+        }
+        settingsList.add(new ForwardingSettings("*", 0));
+        RoutingIndex index = new RoutingIndex(settingsList);
+
+        // requests spread over all routes, some of which only the catch-all matches
+        int requestCount = 1024;
+        String[] hosts = new String[requestCount];
+        String[] paths = new String[requestCount];
+        int[] ports = new int[requestCount];
+        for (int i = 0; i < requestCount; i++) {
+            int route = random.nextInt(routeCount);
+            switch (route % 4) {
+                case 0:
+                case 1:
+                    hosts[i] = "site" + route + ".example.com";
+                    break;
+                case 2:
+                    hosts[i] = "www.tenant" + route + ".example.net";
+                    break;
+                default:
+                    hosts[i] = random.nextBoolean() ? "app" + route + ".example.org" : "unknown" + route + ".example.org";
+                    break;
+            }
+            paths[i] = random.nextBoolean() ? "/api/v1/items" : "/index.html";
+            ports[i] = 8000 + random.nextInt(3);
+        }
+        for (int i = 0; i < requestCount; i++) {
+            ForwardingSettingsMatch expected = linearMatch(settingsList, hosts[i], paths[i], ports[i]);
+            ForwardingSettingsMatch actual = index.match(hosts[i], paths[i], ports[i]);
+            if (expected.settings != actual.settings || expected.index != actual.index) {
+                throw new IllegalStateException("RoutingIndex disagrees with the linear scan for "
+                        + hosts[i] + paths[i] + " on port " + ports[i]);
+            }
+        }
+        int mask = requestCount - 1;
+        time("routes=" + routeCount + " linear scan", i -> {
+            int j = i & mask;
+            return linearMatch(settingsList, hosts[j], paths[j], ports[j]).index;
+        });
+        time("routes=" + routeCount + " RoutingIndex", i -> {
+            int j = i & mask;
+            return index.match(hosts[j], paths[j], ports[j]).index;
+        });
+    }
+
+    /**
+     * How routes were looked up before RoutingIndex.
+     */
+    private static ForwardingSettingsMatch linearMatch(List<ForwardingSettings> settingsList, String host, String path, int port) {
+        for (ForwardingSettings settings : settingsList) {
+            ForwardingSettingsMatch match = settings.match(host, path, port);
+            if (match != null) {
+                return match;
+            }
+        }
+        return null;
+    }
+
+    private static void headers() throws Exception {
+        byte[] header = ("GET /assets/app.js?v=20240101 HTTP/1.1\r\n"
+                + "Host: www.example.com\r\n"
+                + "Connection: keep-alive\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n"
+                + "Accept: */*\r\n"
+                + "Sec-Fetch-Site: same-origin\r\n"
+                + "Sec-Fetch-Mode: no-cors\r\n"
+                + "Sec-Fetch-Dest: script\r\n"
+                + "Referer: https://www.example.com/\r\n"
+                + "Accept-Encoding: gzip, deflate, br\r\n"
+                + "Accept-Language: en-US,en;q=0.9\r\n"
+                + "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark; consent=yes\r\n"
+                + "If-None-Match: \"5f3c-1a2b3c4d\"\r\n"
+                + "If-Modified-Since: Mon, 01 Jan 2024 00:00:00 GMT\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        // many headers back to back, like a keep-alive connection
+        int perStream = 1000;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < perStream; i++) {
+            stream.write(header);
+        }
+        byte[] messages = stream.toByteArray();
+        int sizeLimit = 65536;
+
+        InputStream[] lineByLine = {null};
+        time("headers readCRLF/readHeaders (before)", i -> {
+            if (i % perStream == 0 || lineByLine[0] == null) {
+                lineByLine[0] = new ByteArrayInputStream(messages);
+            }
+            String firstLine = Util.readCRLF(lineByLine[0], sizeLimit);
+            return firstLine.length() + Util.readHeaders(lineByLine[0], sizeLimit).size();
+        });
+
+        InputStream[] unbuffered = {null};
+        time("headers Util.readHeader, unbuffered stream", i -> {
+            if (i % perStream == 0 || unbuffered[0] == null) {
+                unbuffered[0] = new ByteArrayInputStream(messages);
+            }
+            return Util.readHeader(unbuffered[0], sizeLimit).getFirstLine().length();
+        });
+
+        HeaderParser parser = new HeaderParser();
+        SecureBufferedInputStream[] buffered = {null};
+        time("headers HeaderParser, reused and buffered", i -> {
+            if (i % perStream == 0 || buffered[0] == null) {
+                buffered[0] = new SecureBufferedInputStream(new ByteArrayInputStream(messages));
+            }
+            HttpHeader parsed = parser.read(buffered[0], sizeLimit);
+            return parsed.getFirstLine().length();
+        });
+    }
+}
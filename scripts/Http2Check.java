@@ -0,0 +1,137 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Checks HTTP/2 termination with the JDK's HTTP/2 client against a stub
+ * backend. Needs JDK 11 or newer, and is run as a single file program:
+ * <pre>
+ * java scripts/Http2Check.java https://localhost:8443 19000
+ * </pre>
+ * The stub backend listens on 127.0.0.1 at the given port (19000 if left
+ * out), so the proxy needs an s-prefixed port in ports.txt and a hosts file
+ * entry for localhost with backend=127.0.0.1:19000. The proxy's certificate
+ * isn't checked.
+ * <p>
+ * It checks that a GET, a POST with a body, a POST without a Content-Length
+ * and a batch of concurrent requests all come back over HTTP/2 with what the
+ * backend sent. It exits with 1 if any of them doesn't.
+ */
+public class Http2Check {
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java scripts/Http2Check.java <proxy url> [backend port]");
+            System.exit(2);
+        }
+        String base = args[0].replaceAll("/+$", "");
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 19000;
+        HttpServer backend = startBackend(port);
+        System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .sslContext(trustEverything())
+                .build();
+        try {
+            HttpResponse<String> get = client.send(HttpRequest.newBuilder(URI.create(base + "/h2check/hello")).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            check("GET", get, "hello");
+
+            String body = "x".repeat(200000);
+            HttpResponse<String> post = client.send(HttpRequest.newBuilder(URI.create(base + "/h2check/echo"))
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+            check("POST", post, body);
+
+            // no length known up front, so the proxy has to chunk it toward the backend
+            HttpResponse<String> streamed = client.send(HttpRequest.newBuilder(URI.create(base + "/h2check/echo"))
+                    .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new java.io.ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8))))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            check("POST without Content-Length", streamed, body);
+
+            List<CompletableFuture<HttpResponse<String>>> concurrent = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                concurrent.add(client.sendAsync(HttpRequest.newBuilder(URI.create(base + "/h2check/hello?" + i)).build(),
+                        HttpResponse.BodyHandlers.ofString()));
+            }
+            for (int i = 0; i < concurrent.size(); i++) {
+                check("concurrent GET " + i, concurrent.get(i).join(), "hello");
+            }
+        } finally {
+            backend.stop(0);
+        }
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String name, HttpResponse<String> response, String expectedBody) {
+        boolean ok = response.version() == HttpClient.Version.HTTP_2
+                && response.statusCode() == 200
+                && response.body().equals(expectedBody);
+        if (!ok) {
+            failures += 1;
+        }
+        System.out.println((ok ? "ok   " : "FAIL ") + name + ": " + response.version() + " " + response.statusCode()
+                + ", " + response.body().length() + " bytes");
+    }
+
+    private static HttpServer startBackend(int port) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/h2check/hello", exchange -> {
+            byte[] response = "hello".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.createContext("/h2check/echo", exchange -> {
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(received);
+            }
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, received.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                received.writeTo(out);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static SSLContext trustEverything() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, null);
+        return context;
+    }
+}
@@ -0,0 +1,103 @@
+package io.siggi.simplehttpproxy;
+
+import io.siggi.simplehttpproxy.cache.CacheBuilder;
+import io.siggi.simplehttpproxy.cache.CacheManager;
+import io.siggi.simplehttpproxy.cache.CacheObject;
+import io.siggi.simplehttpproxy.cache.InFlightFetch;
+import io.siggi.simplehttpproxy.io.BufferPool;
+import io.siggi.simplehttpproxy.util.HttpHeader;
+import io.siggi.simplehttpproxy.util.Util;
+
+import java.io.InputStream;
+
+/**
+ * Fetches a fresh copy of a cached response while clients are being served
+ * the stale one (stale-while-revalidate). A conditional request is used if
+ * the stale response has validators, so an unchanged response only costs a
+ * 304.
+ */
+final class BackgroundRefresh implements Runnable {
+
+    private final UpstreamPool upstreamPool;
+    private final CacheManager cacheManager;
+    private final String backend;
+    private final String cacheIdentifier;
+    private final HttpHeader requestHeader;
+    private final CacheObject staleObject;
+    private final InFlightFetch fetch;
+
+    /**
+     * @param requestHeader the request as it would be sent to the backend,
+     * copied since the caller keeps using it
+     * @param fetch the fetch that keeps other requests from starting another
+     * refresh, abandoned once this one is done
+     */
+    BackgroundRefresh(UpstreamPool upstreamPool, CacheManager cacheManager, String backend, String cacheIdentifier,
+            HttpHeader requestHeader, CacheObject staleObject, InFlightFetch fetch) {
+        this.upstreamPool = upstreamPool;
+        this.cacheManager = cacheManager;
+        this.backend = backend;
+        this.cacheIdentifier = cacheIdentifier;
+        this.staleObject = staleObject;
+        this.fetch = fetch;
+        this.requestHeader = requestHeader.copy();
+        this.requestHeader.deleteHeader("If-None-Match");
+        this.requestHeader.deleteHeader("If-Modified-Since");
+        this.requestHeader.deleteHeader("If-Range");
+        this.requestHeader.deleteHeader("Range");
+        HttpHeader staleHeader = staleObject.getResponseHeader();
+        String etag = staleHeader.getHeader("ETag");
+        if (etag != null) {
+            this.requestHeader.setHeader("If-None-Match", etag);
+        }
+        String lastModified = staleHeader.getHeader("Last-Modified");
+        if (lastModified != null) {
+            this.requestHeader.setHeader("If-Modified-Since", lastModified);
+        }
+    }
+
+    void start() {
+        ThreadCreator.createThread(this, "BackgroundRefresh", true, false).start();
+    }
+
+    @Override
+    public void run() {
+        UpstreamConnection upstream = null;
+        boolean reusable = false;
+        CacheBuilder cacheBuilder = null;
+        try {
+            upstream = upstreamPool.send(backend, requestHeader);
+            HttpHeader responseHeader = upstream.readHeader();
+            if (responseHeader == null) {
+                return;
+            }
+            reusable = upstream.keepAlive(responseHeader);
+            String firstLine = responseHeader.getFirstLine();
+            if (firstLine.substring(firstLine.indexOf(" ") + 1).startsWith("304 ")) {
+                cacheManager.refresh(staleObject, responseHeader);
+                return;
+            }
+            // a new response replaces the stale one once it's been cached
+            cacheBuilder = cacheManager.createCache(cacheIdentifier, requestHeader, responseHeader, fetch);
+            InputStream in = responseHeader.wrapInputStream(upstream.in);
+            Util.copy(in, cacheBuilder, BufferPool.MEDIUM, null);
+            if (cacheBuilder != null) {
+                cacheBuilder.finished();
+            }
+        } catch (Exception e) {
+            reusable = false;
+        } finally {
+            if (cacheBuilder != null) {
+                cacheBuilder.close();
+            }
+            fetch.abandon();
+            if (upstream != null) {
+                if (reusable) {
+                    upstreamPool.release(upstream);
+                } else {
+                    upstream.close();
+                }
+            }
+        }
+    }
+}
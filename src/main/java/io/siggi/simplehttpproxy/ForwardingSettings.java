@@ -1,5 +1,7 @@
 package io.siggi.simplehttpproxy;
 
+import io.siggi.simplehttpproxy.cache.CacheManager;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -16,6 +18,11 @@ class ForwardingSettings {
     public String backend = null;
     public ForwardType forwardType = ForwardType.NORMAL;
     public boolean allowCache = false;
+    public long cacheSliceSize = 0L; // cache large responses in slices of this many bytes, 0 to cache them whole
+    public boolean compress = false; // gzip or deflate uncompressed responses for clients that accept it
+    public long compressMinSize = 1024L;
+    // lowercase MIME types worth compressing, type/* or *+suffix for several, null for the built-in list
+    public List<String> compressTypes = null;
     public boolean hideOtherProxies = false;
     public boolean alwaysCloseConnection = false;
     public BasicAuthCondition basicAuthCondition = BasicAuthCondition.NEVER;
@@ -23,6 +30,9 @@ class ForwardingSettings {
     public long hstsTimeout = -1L;
     public boolean hstsIncludeSubdomains = false;
     public boolean hstsPreload = false;
+    // seconds, used when a cached response doesn't specify its own
+    public long staleWhileRevalidate = 0L;
+    public long staleIfError = 0L;
     public List<String> injectHeadersToServer = new ArrayList<>();
     public List<String> injectHeadersToClient = new ArrayList<>();
     ForwardingSettings(String key, int defaultPort) {
@@ -77,6 +87,30 @@ class ForwardingSettings {
         return null;
     }
 
+    /**
+     * @param contentType a Content-Type header, or null
+     * @return whether responses of this type should be compressed on this
+     * route
+     */
+    public boolean isCompressibleType(String contentType) {
+        if (compressTypes == null || contentType == null) {
+            return CacheManager.isCompressibleType(contentType);
+        }
+        int semicolonPos = contentType.indexOf(";");
+        if (semicolonPos >= 0) {
+            contentType = contentType.substring(0, semicolonPos);
+        }
+        contentType = contentType.trim().toLowerCase();
+        for (String type : compressTypes) {
+            if (type.endsWith("/*") ? contentType.startsWith(type.substring(0, type.length() - 1))
+                    : type.startsWith("*+") ? contentType.endsWith(type.substring(1))
+                    : contentType.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public BasicAuth getBasicAuth() {
         if (basicAuthFile != null) {
             try {
@@ -0,0 +1,83 @@
+package io.siggi.simplehttpproxy;
+
+import io.siggi.simplehttpproxy.util.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs ProxyHandler tasks with an upper bound on how many can run at the
+ * same time and how many can wait for a free slot. Anything beyond that is
+ * refused so the caller can shed the connection instead of creating more
+ * threads. Shedding has a few threads and a bounded queue of its own, so
+ * turning connections away doesn't create threads either.
+ */
+final class HandlerPool {
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor shedder;
+    private final Metrics.Counter rejected = Metrics.counter("handlers.rejected");
+    private final Metrics.Counter dequeued = Metrics.counter("handlers.queue.dequeued");
+    private final Metrics.Counter queueTime = Metrics.counter("handlers.queue.time.ms");
+    private final Metrics.Counter aborted = Metrics.counter("handlers.shed.aborted");
+
+    HandlerPool(int maxHandlers, int queueSize) {
+        executor = new ThreadPoolExecutor(
+                maxHandlers, maxHandlers,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                runnable -> ThreadCreator.createThread(runnable, null, false, true)
+        );
+        executor.allowCoreThreadTimeOut(true);
+        shedder = new ThreadPoolExecutor(
+                4, 4,
+                30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(256),
+                runnable -> ThreadCreator.createThread(runnable, null, true, false)
+        );
+        shedder.allowCoreThreadTimeOut(true);
+        Metrics.gauge("handlers.max", () -> maxHandlers);
+        Metrics.gauge("handlers.active", executor::getActiveCount);
+        Metrics.gauge("handlers.queue.depth", () -> executor.getQueue().size());
+    }
+
+    /**
+     * Run a task on the pool.
+     *
+     * @param task the task to run
+     * @return false if the pool and its queue are full and the task was not
+     * accepted
+     */
+    boolean execute(Runnable task) {
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                dequeued.increment();
+                queueTime.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt));
+                task.run();
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Turn away a connection that {@link #execute(Runnable)} refused.
+     *
+     * @param task writes the refusal, may block on a slow client
+     * @param abort run on the calling thread instead if the shedding threads
+     * and their queue are full too, must not block
+     */
+    void shed(Runnable task, Runnable abort) {
+        try {
+            shedder.execute(task);
+        } catch (RejectedExecutionException e) {
+            aborted.increment();
+            abort.run();
+        }
+    }
+}
@@ -0,0 +1,1213 @@
+package io.siggi.simplehttpproxy;
+
+import io.siggi.simplehttpproxy.http2.HpackDecoder;
+import io.siggi.simplehttpproxy.http2.HpackEncoder;
+import io.siggi.simplehttpproxy.io.BoundedPipe;
+import io.siggi.simplehttpproxy.util.Metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serves an HTTP/2 connection that was negotiated through ALPN on a secure
+ * listener.
+ * <p>
+ * Frames are read on the connection's own thread. Every stream is turned into
+ * an HTTP/1.1 request and served by a sub-handler of the connection's
+ * ProxyHandler on the handler pool, so routing, auth, caching and everything
+ * else behave exactly as they do for HTTP/1.1 clients. The HTTP/1.1 response
+ * the sub-handler writes is turned back into HEADERS and DATA frames.
+ */
+final class Http2Connection {
+
+    private static final byte[] preface = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] empty = new byte[0];
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+    private static final int defaultWindow = 65535;
+    // what we announce in our SETTINGS
+    private static final int maxConcurrentStreams = 100;
+    private static final int streamWindow = 262144;
+    private static final int connectionWindow = 16777216;
+    private static final int maxFrameSize = 16384;
+    private static final int maxHeaderListSize = 65536;
+    private static final Metrics.Counter connections = Metrics.counter("http2.connections");
+    private static final Metrics.Counter streamsOpened = Metrics.counter("http2.streams");
+    private static final Metrics.Counter streamsRefused = Metrics.counter("http2.streams.refused");
+    private static final Metrics.Counter streamsReset = Metrics.counter("http2.streams.reset");
+
+    private final SimpleHttpProxy proxyServer;
+    private final ProxyHandler handler;
+    private final InputStream in;
+    private final OutputStream out;
+    private final HpackDecoder decoder = new HpackDecoder(4096);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final byte[] writeBuffer = new byte[9 + maxFrameSize];
+    private final ReentrantLock flowLock = new ReentrantLock();
+    private final Condition windowAvailable = flowLock.newCondition();
+    private int connectionSendWindow = defaultWindow; // guarded by flowLock
+    private int peerInitialWindow = defaultWindow; // guarded by flowLock
+    private volatile boolean closed = false;
+    // streams whose sub-handler hasn't finished yet, even if the client reset them
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    // streams whose sub-handler finished without them being reset
+    private final AtomicInteger completedStreams = new AtomicInteger();
+    // only touched by the reading thread
+    private int lastStreamId = 0;
+    private int clientResets = 0;
+    private int continuationStream = 0;
+    private int continuationFlags = 0;
+    private ByteArrayOutputStream continuationBlock = null;
+
+    Http2Connection(SimpleHttpProxy proxyServer, ProxyHandler handler, InputStream in, OutputStream out) {
+        this.proxyServer = proxyServer;
+        this.handler = handler;
+        this.in = in;
+        this.out = out;
+    }
+
+    void run() {
+        connections.increment();
+        try {
+            byte[] clientPreface = new byte[preface.length];
+            if (!readFully(clientPreface, preface.length, true) || !Arrays.equals(clientPreface, preface)) {
+                return;
+            }
+            byte[] settings = new byte[18];
+            putSetting(settings, 0, 0x3, maxConcurrentStreams); // SETTINGS_MAX_CONCURRENT_STREAMS
+            putSetting(settings, 6, 0x4, streamWindow); // SETTINGS_INITIAL_WINDOW_SIZE
+            putSetting(settings, 12, 0x6, maxHeaderListSize); // SETTINGS_MAX_HEADER_LIST_SIZE
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            // the connection window can only be changed with WINDOW_UPDATE
+            writeWindowUpdate(0, connectionWindow - defaultWindow);
+            byte[] header = new byte[9];
+            byte[] payload = new byte[maxFrameSize];
+            while (readFully(header, 9, true)) {
+                int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int streamId = readInt31(header, 5);
+                if (length > maxFrameSize) {
+                    throw new Http2Exception(FRAME_SIZE_ERROR);
+                }
+                if (!readFully(payload, length, false)) {
+                    throw new EOFException();
+                }
+                if (continuationBlock != null && type != CONTINUATION) {
+                    throw new Http2Exception(PROTOCOL_ERROR);
+                }
+                switch (type) {
+                    case DATA:
+                        readData(streamId, flags, payload, length);
+                        break;
+                    case HEADERS:
+                        readHeaders(streamId, flags, payload, length);
+                        break;
+                    case PRIORITY:
+                        if (streamId == 0) {
+                            throw new Http2Exception(PROTOCOL_ERROR);
+                        }
+                        break;
+                    case RST_STREAM:
+                        if (streamId == 0 || streamId > lastStreamId) {
+                            throw new Http2Exception(PROTOCOL_ERROR);
+                        }
+                        if (length != 4) {
+                            throw new Http2Exception(FRAME_SIZE_ERROR);
+                        }
+                        Stream reset = streams.remove(streamId);
+                        if (reset != null) {
+                            abort(reset);
+                            streamsReset.increment();
+                            // opening streams and resetting them right away makes us do the
+                            // work without the client ever waiting for it (CVE-2023-44487)
+                            if (++clientResets > maxConcurrentStreams && clientResets > 2 * completedStreams.get()) {
+                                throw new Http2Exception(ENHANCE_YOUR_CALM);
+                            }
+                        }
+                        break;
+                    case SETTINGS:
+                        readSettings(streamId, flags, payload, length);
+                        break;
+                    case PUSH_PROMISE:
+                        // clients can't push
+                        throw new Http2Exception(PROTOCOL_ERROR);
+                    case PING:
+                        if (streamId != 0) {
+                            throw new Http2Exception(PROTOCOL_ERROR);
+                        }
+                        if (length != 8) {
+                            throw new Http2Exception(FRAME_SIZE_ERROR);
+                        }
+                        if ((flags & FLAG_ACK) == 0) {
+                            writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+                        }
+                        break;
+                    case GOAWAY:
+                        // the client won't open more streams, it closes the connection once
+                        // it has what it wants from the ones still open
+                        break;
+                    case WINDOW_UPDATE:
+                        readWindowUpdate(streamId, payload, length);
+                        break;
+                    case CONTINUATION:
+                        if (continuationBlock == null || streamId != continuationStream) {
+                            throw new Http2Exception(PROTOCOL_ERROR);
+                        }
+                        continuationBlock.write(payload, 0, length);
+                        if (continuationBlock.size() > maxHeaderListSize) {
+                            throw new Http2Exception(PROTOCOL_ERROR);
+                        }
+                        if ((flags & FLAG_END_HEADERS) != 0) {
+                            byte[] block = continuationBlock.toByteArray();
+                            continuationBlock = null;
+                            headerBlock(streamId, continuationFlags, block);
+                        }
+                        break;
+                    default:
+                        // unknown frame types must be ignored
+                        break;
+                }
+            }
+        } catch (Http2Exception e) {
+            try {
+                byte[] goAway = new byte[8];
+                putInt(goAway, 0, lastStreamId);
+                putInt(goAway, 4, e.errorCode);
+                writeFrame(GOAWAY, 0, 0, goAway, 0, goAway.length);
+            } catch (IOException e2) {
+            }
+        } catch (SocketTimeoutException e) {
+            // idle with no open streams
+            try {
+                byte[] goAway = new byte[8];
+                putInt(goAway, 0, lastStreamId);
+                writeFrame(GOAWAY, 0, 0, goAway, 0, goAway.length);
+            } catch (IOException e2) {
+            }
+        } catch (EOFException e) {
+        } catch (SocketException e) {
+        } catch (Exception e) {
+            proxyServer.log(e);
+        } finally {
+            closed = true;
+            flowLock.lock();
+            try {
+                windowAvailable.signalAll();
+            } finally {
+                flowLock.unlock();
+            }
+            for (Stream stream : streams.values()) {
+                abort(stream);
+            }
+            streams.clear();
+            handler.close();
+        }
+    }
+
+    private boolean readFully(byte[] buffer, int length, boolean frameStart) throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            int amount;
+            try {
+                amount = in.read(buffer, pos, length - pos);
+            } catch (SocketTimeoutException e) {
+                // a long response can keep the client quiet for a while
+                if (pos > 0 || !frameStart || !streams.isEmpty()) {
+                    continue;
+                }
+                throw e;
+            }
+            if (amount == -1) {
+                if (pos == 0 && frameStart) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+            pos += amount;
+        }
+        return true;
+    }
+
+    private void readData(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR);
+        }
+        int offset = 0;
+        int dataLength = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length == 0 || (payload[0] & 0xff) >= length) {
+                throw new Http2Exception(PROTOCOL_ERROR);
+            }
+            offset = 1;
+            dataLength = length - 1 - (payload[0] & 0xff);
+        }
+        // hand the connection window straight back, the stream windows limit what we buffer
+        if (length > 0) {
+            writeWindowUpdate(0, length);
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.bodyPipe == null || stream.receivedEnd) {
+            writeRstStream(streamId, STREAM_CLOSED);
+            return;
+        }
+        if (stream.recvWindow.addAndGet(-length) < 0) {
+            streams.remove(streamId);
+            writeRstStream(streamId, FLOW_CONTROL_ERROR);
+            abort(stream);
+            return;
+        }
+        stream.receivedLength += dataLength;
+        if (stream.expectedLength != -1L && (stream.receivedLength > stream.expectedLength
+                || ((flags & FLAG_END_STREAM) != 0 && stream.receivedLength != stream.expectedLength))) {
+            // the backend would read the body by its content-length
+            streams.remove(streamId);
+            writeRstStream(streamId, PROTOCOL_ERROR);
+            abort(stream);
+            return;
+        }
+        if (length > dataLength) {
+            // padding never reaches the backend, so it won't be acknowledged when it's read
+            stream.recvWindow.addAndGet(length - dataLength);
+            writeWindowUpdate(streamId, length - dataLength);
+        }
+        try {
+            // never blocks, the pipe is as large as the window
+            stream.bodyPipe.getOutputStream().write(payload, offset, dataLength);
+        } catch (IOException e) {
+            // the request has already been answered
+        }
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.receivedEnd = true;
+            stream.bodyPipe.closeWrite();
+        }
+    }
+
+    private void readHeaders(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR);
+        }
+        int offset = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (length == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR);
+            }
+            offset = 1;
+            end -= payload[0] & 0xff;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (end < offset) {
+            throw new Http2Exception(PROTOCOL_ERROR);
+        }
+        if ((flags & FLAG_END_HEADERS) == 0) {
+            continuationStream = streamId;
+            continuationFlags = flags;
+            continuationBlock = new ByteArrayOutputStream();
+            continuationBlock.write(payload, offset, end - offset);
+            return;
+        }
+        headerBlock(streamId, flags, Arrays.copyOfRange(payload, offset, end));
+    }
+
+    private void headerBlock(int streamId, int flags, byte[] block) throws IOException {
+        List<String[]> fields;
+        try {
+            fields = decoder.decode(block, maxHeaderListSize);
+        } catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR);
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        Stream existing = streams.get(streamId);
+        if (existing != null) {
+            // trailers, HTTP/1.1 has nowhere to put them on a request
+            if (existing.receivedEnd || !endStream
+                    || (existing.expectedLength != -1L && existing.receivedLength != existing.expectedLength)) {
+                streams.remove(streamId);
+                writeRstStream(streamId, PROTOCOL_ERROR);
+                abort(existing);
+                return;
+            }
+            existing.receivedEnd = true;
+            if (existing.bodyPipe != null) {
+                existing.bodyPipe.closeWrite();
+            }
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Exception(STREAM_CLOSED);
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR);
+        }
+        lastStreamId = streamId;
+        if (activeStreams.get() >= maxConcurrentStreams) {
+            streamsRefused.increment();
+            writeRstStream(streamId, REFUSED_STREAM);
+            return;
+        }
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        String host = null;
+        long contentLength = -1L;
+        boolean regularFields = false;
+        StringBuilder cookies = null;
+        ByteArrayOutputStream headerLines = new ByteArrayOutputStream();
+        // anything that could change the meaning of the HTTP/1.1 request we write makes it malformed
+        for (String[] field : fields) {
+            String name = field[0];
+            String value = field[1];
+            if (!isValidValue(value)) {
+                writeRstStream(streamId, PROTOCOL_ERROR);
+                return;
+            }
+            if (name.startsWith(":")) {
+                String previous;
+                switch (name) {
+                    case ":method":
+                        previous = method;
+                        method = value;
+                        break;
+                    case ":scheme":
+                        previous = scheme;
+                        scheme = value;
+                        break;
+                    case ":path":
+                        previous = path;
+                        path = value;
+                        break;
+                    case ":authority":
+                        previous = authority;
+                        authority = value;
+                        break;
+                    default:
+                        writeRstStream(streamId, PROTOCOL_ERROR);
+                        return;
+                }
+                if (previous != null || regularFields) {
+                    writeRstStream(streamId, PROTOCOL_ERROR);
+                    return;
+                }
+                continue;
+            }
+            regularFields = true;
+            if (!isValidName(name)) {
+                writeRstStream(streamId, PROTOCOL_ERROR);
+                return;
+            }
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    // connection specific, not allowed in HTTP/2
+                    writeRstStream(streamId, PROTOCOL_ERROR);
+                    return;
+                case "te":
+                    if (!value.equals("trailers")) {
+                        writeRstStream(streamId, PROTOCOL_ERROR);
+                        return;
+                    }
+                    continue;
+                case "expect":
+                    // not meaningful once translated
+                    continue;
+                case "host":
+                    if (host != null) {
+                        writeRstStream(streamId, PROTOCOL_ERROR);
+                        return;
+                    }
+                    host = value;
+                    continue;
+                case "cookie":
+                    // HTTP/2 splits the cookie header, HTTP/1.1 wants it in one piece
+                    cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+                    continue;
+                case "content-length":
+                    if (contentLength != -1L || !isDigits(value) || value.length() > 18) {
+                        writeRstStream(streamId, PROTOCOL_ERROR);
+                        return;
+                    }
+                    contentLength = Long.parseLong(value);
+                    break;
+            }
+            writeLine(headerLines, name + ": " + value);
+        }
+        // CONNECT has no path, and we have no way to tunnel it anyway
+        if (method == null || !isToken(method) || method.equals("CONNECT")
+                || (scheme == null || !(scheme.equals("http") || scheme.equals("https")))
+                || path == null || !isValidTarget(path) || (path.charAt(0) != '/' && !(path.equals("*") && method.equals("OPTIONS")))
+                || (authority != null && (!isValidTarget(authority) || authority.indexOf('@') >= 0))
+                || (host != null && !isValidTarget(host))
+                || (endStream && contentLength > 0L)) {
+            writeRstStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        boolean hasContentLength = contentLength != -1L;
+        if (authority == null) {
+            authority = host;
+        }
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writeLine(request, method + " " + path + " HTTP/1.1");
+        if (authority != null) {
+            writeLine(request, "Host: " + authority);
+        }
+        headerLines.writeTo(request);
+        if (cookies != null) {
+            writeLine(request, "Cookie: " + cookies);
+        }
+        if (!endStream && !hasContentLength) {
+            writeLine(request, "Transfer-Encoding: chunked");
+        }
+        writeLine(request, "");
+
+        Stream stream;
+        flowLock.lock();
+        try {
+            stream = new Stream(streamId, peerInitialWindow);
+        } finally {
+            flowLock.unlock();
+        }
+        stream.expectedLength = contentLength;
+        InputStream requestIn = new ByteArrayInputStream(request.toByteArray());
+        if (endStream) {
+            stream.receivedEnd = true;
+        } else {
+            stream.bodyPipe = new BoundedPipe(streamWindow);
+            InputStream body = new RequestBodyInputStream(stream);
+            if (!hasContentLength) {
+                body = new ChunkEncodingInputStream(body);
+            }
+            requestIn = new SequenceInputStream(requestIn, body);
+        }
+        ResponseOutputStream response = new ResponseOutputStream(stream);
+        ProxyHandler subHandler = handler.createSubHandler(requestIn, response);
+        streams.put(streamId, stream);
+        streamsOpened.increment();
+        activeStreams.incrementAndGet();
+        boolean accepted = proxyServer.getHandlerPool().execute(() -> {
+            try {
+                subHandler.requestLoop();
+            } finally {
+                try {
+                    response.close();
+                } finally {
+                    if (!stream.reset) {
+                        completedStreams.incrementAndGet();
+                    }
+                    activeStreams.decrementAndGet();
+                }
+            }
+        });
+        if (!accepted) {
+            activeStreams.decrementAndGet();
+            streams.remove(streamId);
+            streamsRefused.increment();
+            writeRstStream(streamId, REFUSED_STREAM);
+            abort(stream);
+        }
+    }
+
+    private void readSettings(int streamId, int flags, byte[] payload, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR);
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR);
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            long value = readInt32(payload, i + 2);
+            switch (id) {
+                case 0x2: // SETTINGS_ENABLE_PUSH, we never push anyway
+                    if (value > 1) {
+                        throw new Http2Exception(PROTOCOL_ERROR);
+                    }
+                    break;
+                case 0x4: // SETTINGS_INITIAL_WINDOW_SIZE
+                    if (value > Integer.MAX_VALUE) {
+                        throw new Http2Exception(FLOW_CONTROL_ERROR);
+                    }
+                    flowLock.lock();
+                    try {
+                        int delta = (int) value - peerInitialWindow;
+                        peerInitialWindow = (int) value;
+                        for (Stream stream : streams.values()) {
+                            if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) {
+                                throw new Http2Exception(FLOW_CONTROL_ERROR);
+                            }
+                            stream.sendWindow += delta;
+                        }
+                        windowAvailable.signalAll();
+                    } finally {
+                        flowLock.unlock();
+                    }
+                    break;
+                case 0x5: // SETTINGS_MAX_FRAME_SIZE, we never send more than the minimum
+                    if (value < 16384 || value > 16777215) {
+                        throw new Http2Exception(PROTOCOL_ERROR);
+                    }
+                    break;
+            }
+        }
+        writeFrame(SETTINGS, FLAG_ACK, 0, empty, 0, 0);
+    }
+
+    private void readWindowUpdate(int streamId, byte[] payload, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(FRAME_SIZE_ERROR);
+        }
+        int increment = readInt31(payload, 0);
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR);
+            }
+            Stream stream = streams.remove(streamId);
+            writeRstStream(streamId, PROTOCOL_ERROR);
+            if (stream != null) {
+                abort(stream);
+            }
+            return;
+        }
+        Stream overflowed = null;
+        flowLock.lock();
+        try {
+            if (streamId == 0) {
+                if ((long) connectionSendWindow + increment > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR);
+                }
+                connectionSendWindow += increment;
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                    overflowed = stream;
+                } else {
+                    stream.sendWindow += increment;
+                }
+            }
+            windowAvailable.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+        if (overflowed != null) {
+            streams.remove(streamId);
+            writeRstStream(streamId, FLOW_CONTROL_ERROR);
+            abort(overflowed);
+        }
+    }
+
+    /**
+     * Stop a stream that the client reset or that we gave up on. The
+     * sub-handler notices the next time it reads the request body or writes
+     * the response.
+     */
+    private void abort(Stream stream) {
+        stream.reset = true;
+        if (stream.bodyPipe != null) {
+            stream.bodyPipe.abort();
+        }
+        flowLock.lock();
+        try {
+            windowAvailable.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    /**
+     * Take as much of the send windows as is available, waiting if either of
+     * them is empty.
+     */
+    private int acquireWindow(Stream stream, int wanted) throws IOException {
+        flowLock.lock();
+        try {
+            while (connectionSendWindow <= 0 || stream.sendWindow <= 0) {
+                if (closed || stream.reset) {
+                    throw new SocketException("Socket is closed");
+                }
+                windowAvailable.await();
+            }
+            int amount = Math.min(wanted, Math.min(connectionSendWindow, stream.sendWindow));
+            connectionSendWindow -= amount;
+            stream.sendWindow -= amount;
+            return amount;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            flowLock.unlock();
+        }
+    }
+
+    private void writeData(Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        if (length == 0) {
+            writeFrame(DATA, endStream ? FLAG_END_STREAM : 0, stream.id, data, offset, 0);
+            return;
+        }
+        while (length > 0) {
+            int amount = acquireWindow(stream, Math.min(length, maxFrameSize));
+            boolean last = amount == length;
+            writeFrame(DATA, last && endStream ? FLAG_END_STREAM : 0, stream.id, data, offset, amount);
+            offset += amount;
+            length -= amount;
+        }
+    }
+
+    private void writeHeaderBlock(Stream stream, byte[] block, boolean endStream) throws IOException {
+        writeLock.lock();
+        try {
+            // CONTINUATION frames have to follow their HEADERS frame immediately
+            int offset = 0;
+            int type = HEADERS;
+            do {
+                int amount = Math.min(block.length - offset, maxFrameSize);
+                int flags = 0;
+                if (type == HEADERS && endStream) {
+                    flags |= FLAG_END_STREAM;
+                }
+                if (offset + amount == block.length) {
+                    flags |= FLAG_END_HEADERS;
+                }
+                writeFrame(type, flags, stream.id, block, offset, amount);
+                offset += amount;
+                type = CONTINUATION;
+            } while (offset < block.length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeRstStream(int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            if (closed) {
+                throw new SocketException("Socket is closed");
+            }
+            // one write per frame so TLS doesn't send the frame header in a record of its own
+            writeBuffer[0] = (byte) (length >> 16);
+            writeBuffer[1] = (byte) (length >> 8);
+            writeBuffer[2] = (byte) length;
+            writeBuffer[3] = (byte) type;
+            writeBuffer[4] = (byte) flags;
+            putInt(writeBuffer, 5, streamId);
+            System.arraycopy(payload, offset, writeBuffer, 9, length);
+            out.write(writeBuffer, 0, 9 + length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void writeLine(ByteArrayOutputStream out, String line) {
+        byte[] bytes = (line + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    // lowercase token characters, RFC 9113 section 8.2.1
+    private static boolean isValidName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!isTokenChar(c) || (c >= 'A' && c <= 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // no NUL, CR or LF, and no whitespace at either end
+    private static boolean isValidValue(String value) {
+        int length = value.length();
+        if (length > 0 && (isWhitespace(value.charAt(0)) || isWhitespace(value.charAt(length - 1)))) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == 0 || c == '\r' || c == '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isToken(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!isTokenChar(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // goes on the request line or in Host, so no spaces or control characters
+    private static boolean isValidTarget(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c <= 0x20 || c == 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigits(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isTokenChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || "!#$%&'*+-.^_`|~".indexOf(c) >= 0;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static void putSetting(byte[] b, int offset, int id, int value) {
+        b[offset] = (byte) (id >> 8);
+        b[offset + 1] = (byte) id;
+        putInt(b, offset + 2, value);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    private static long readInt32(byte[] b, int offset) {
+        return ((b[offset] & 0xffL) << 24) | ((b[offset + 1] & 0xff) << 16) | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    private static int readInt31(byte[] b, int offset) {
+        return (int) (readInt32(b, offset) & 0x7fffffffL);
+    }
+
+    private static final class Stream {
+
+        private final int id;
+        private int sendWindow; // guarded by flowLock
+        private final AtomicInteger recvWindow = new AtomicInteger(streamWindow);
+        private BoundedPipe bodyPipe = null;
+        private long expectedLength = -1L; // from content-length, checked against the DATA frames
+        private long receivedLength = 0L;
+        private volatile boolean receivedEnd = false;
+        private volatile boolean reset = false;
+
+        private Stream(int id, int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+    }
+
+    private static final class Http2Exception extends IOException {
+
+        private static final long serialVersionUID = 1L;
+        private final int errorCode;
+
+        private Http2Exception(int errorCode) {
+            super("HTTP/2 error " + errorCode);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * The request body as the sub-handler reads it. Whatever it reads is given
+     * back to the client as stream window.
+     */
+    private final class RequestBodyInputStream extends InputStream {
+
+        private final Stream stream;
+        private final InputStream pipe;
+        private int unacknowledged = 0;
+
+        private RequestBodyInputStream(Stream stream) {
+            this.stream = stream;
+            this.pipe = stream.bodyPipe.getInputStream();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int amount = read(b, 0, 1);
+            return amount == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int o, int l) throws IOException {
+            int amount = pipe.read(b, o, l);
+            if (amount > 0 && !stream.receivedEnd) {
+                unacknowledged += amount;
+                if (unacknowledged >= streamWindow / 4) {
+                    stream.recvWindow.addAndGet(unacknowledged);
+                    writeWindowUpdate(stream.id, unacknowledged);
+                    unacknowledged = 0;
+                }
+            }
+            return amount;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return pipe.available();
+        }
+    }
+
+    /**
+     * Adds chunked framing to a request body that didn't come with a
+     * Content-Length.
+     */
+    private static final class ChunkEncodingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final byte[] data = new byte[8192];
+        private byte[] pending = empty;
+        private int pendingPos = 0;
+        private boolean finished = false;
+
+        private ChunkEncodingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int amount = read(b, 0, 1);
+            return amount == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int o, int l) throws IOException {
+            if (pendingPos >= pending.length) {
+                if (finished) {
+                    return -1;
+                }
+                int amount = in.read(data, 0, data.length);
+                if (amount == -1) {
+                    finished = true;
+                    pending = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+                } else {
+                    byte[] size = (Integer.toHexString(amount) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    pending = new byte[size.length + amount + 2];
+                    System.arraycopy(size, 0, pending, 0, size.length);
+                    System.arraycopy(data, 0, pending, size.length, amount);
+                    pending[pending.length - 2] = '\r';
+                    pending[pending.length - 1] = '\n';
+                }
+                pendingPos = 0;
+            }
+            int amount = Math.min(l, pending.length - pendingPos);
+            System.arraycopy(pending, pendingPos, b, o, amount);
+            pendingPos += amount;
+            return amount;
+        }
+    }
+
+    /**
+     * Receives the HTTP/1.1 response a sub-handler writes and sends it to the
+     * client as HEADERS and DATA frames.
+     */
+    private final class ResponseOutputStream extends OutputStream {
+
+        private static final int CHUNK_SIZE = 0;
+        private static final int CHUNK_DATA = 1;
+        private static final int CHUNK_END = 2;
+        private static final int TRAILERS = 3;
+        private static final int DONE = 4;
+        private final Stream stream;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private byte[] headerBlock = null; // encoded but not sent yet
+        private HpackEncoder trailers = null;
+        private int tail = 0; // the last four bytes of the head
+        private boolean headersSent = false;
+        private boolean chunked = false;
+        private int chunkState = CHUNK_SIZE;
+        private long chunkRemaining = 0L;
+        private boolean finished = false;
+
+        private ResponseOutputStream(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int o, int l) throws IOException {
+            if (stream.reset || closed) {
+                throw new SocketException("Socket is closed");
+            }
+            while (l > 0) {
+                if (headerBlock == null && !headersSent) {
+                    int amount = readHead(b, o, l);
+                    o += amount;
+                    l -= amount;
+                    continue;
+                }
+                if (!chunked) {
+                    sendData(b, o, l);
+                    return;
+                }
+                int amount;
+                switch (chunkState) {
+                    case CHUNK_DATA:
+                        amount = (int) Math.min(l, chunkRemaining);
+                        sendData(b, o, amount);
+                        chunkRemaining -= amount;
+                        if (chunkRemaining == 0L) {
+                            chunkState = CHUNK_END;
+                        }
+                        break;
+                    case CHUNK_END:
+                        amount = 1;
+                        if (b[o] == '\n') {
+                            chunkState = CHUNK_SIZE;
+                        }
+                        break;
+                    case DONE:
+                        amount = l;
+                        break;
+                    default:
+                        amount = 1;
+                        readChunkLine(b[o]);
+                        break;
+                }
+                o += amount;
+                l -= amount;
+            }
+        }
+
+        private int readHead(byte[] b, int o, int l) throws IOException {
+            for (int i = 0; i < l; i++) {
+                head.write(b[o + i]);
+                if (head.size() > maxHeaderListSize) {
+                    throw new IOException("Response header too large");
+                }
+                tail = (tail << 8) | (b[o + i] & 0xff);
+                if (tail == 0x0D0A0D0A) {
+                    tail = 0;
+                    parseHead();
+                    return i + 1;
+                }
+            }
+            return l;
+        }
+
+        private void parseHead() throws IOException {
+            String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+            head.reset();
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2) {
+                throw new IOException("Malformed response");
+            }
+            String status = statusLine[1];
+            if (status.startsWith("1")) {
+                // interim responses aren't passed on
+                return;
+            }
+            HpackEncoder encoder = new HpackEncoder();
+            encoder.add(":status", status);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase();
+                String value = lines[i].substring(colon + 1).trim();
+                switch (name) {
+                    case "transfer-encoding":
+                        chunked = value.equalsIgnoreCase("chunked");
+                        continue;
+                    case "connection":
+                    case "keep-alive":
+                    case "proxy-connection":
+                    case "upgrade":
+                        continue;
+                }
+                encoder.add(name, value);
+            }
+            headerBlock = encoder.toByteArray();
+        }
+
+        private void readChunkLine(byte b) throws IOException {
+            if (b == '\r') {
+                return;
+            }
+            if (b != '\n') {
+                if (line.size() >= (chunkState == TRAILERS ? 8192 : 1024)) {
+                    throw new IOException("Malformed chunked response");
+                }
+                line.write(b);
+                return;
+            }
+            String text = new String(line.toByteArray(), StandardCharsets.ISO_8859_1).trim();
+            line.reset();
+            if (chunkState == TRAILERS) {
+                if (text.isEmpty()) {
+                    chunkState = DONE;
+                } else {
+                    addTrailer(text);
+                }
+                return;
+            }
+            int semicolon = text.indexOf(';');
+            if (semicolon >= 0) {
+                text = text.substring(0, semicolon).trim();
+            }
+            try {
+                chunkRemaining = Long.parseLong(text, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunked response");
+            }
+            chunkState = chunkRemaining == 0L ? TRAILERS : CHUNK_DATA;
+        }
+
+        private void addTrailer(String text) {
+            int colon = text.indexOf(':');
+            if (colon <= 0) {
+                return;
+            }
+            String name = text.substring(0, colon).trim().toLowerCase();
+            String value = text.substring(colon + 1).trim();
+            if (!isValidName(name) || !isValidValue(value) || !Trailers.isAllowed(name)) {
+                return;
+            }
+            if (trailers == null) {
+                trailers = new HpackEncoder();
+            }
+            trailers.add(name, value);
+        }
+
+        private void sendData(byte[] b, int o, int l) throws IOException {
+            if (!headersSent) {
+                writeHeaderBlock(stream, headerBlock, false);
+                headersSent = true;
+                headerBlock = null;
+            }
+            writeData(stream, b, o, l, false);
+        }
+
+        @Override
+        public void close() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try {
+                if (stream.reset || closed) {
+                    return;
+                }
+                if (trailers != null && (headersSent || headerBlock != null)) {
+                    if (!headersSent) {
+                        writeHeaderBlock(stream, headerBlock, false);
+                        headersSent = true;
+                        headerBlock = null;
+                    }
+                    // trailers go in a HEADERS frame that ends the stream
+                    writeHeaderBlock(stream, trailers.toByteArray(), true);
+                } else if (headersSent) {
+                    writeData(stream, empty, 0, 0, true);
+                } else if (headerBlock != null) {
+                    writeHeaderBlock(stream, headerBlock, true);
+                } else {
+                    // the sub-handler gave up without writing a response
+                    writeRstStream(stream.id, INTERNAL_ERROR);
+                }
+                if (!stream.receivedEnd) {
+                    // we've answered, the client can stop sending the request body
+                    writeRstStream(stream.id, NO_ERROR);
+                }
+            } catch (IOException e) {
+            } finally {
+                streams.remove(stream.id);
+                if (stream.bodyPipe != null) {
+                    stream.bodyPipe.closeRead();
+                }
+            }
+        }
+    }
+}
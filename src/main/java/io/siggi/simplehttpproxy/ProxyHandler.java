@@ -4,22 +4,32 @@ import io.siggi.iphelper.IP;
 import io.siggi.simplehttpproxy.cache.CacheBuilder;
 import io.siggi.simplehttpproxy.cache.CacheManager;
 import io.siggi.simplehttpproxy.cache.CacheObject;
+import io.siggi.simplehttpproxy.cache.InFlightFetch;
+import io.siggi.simplehttpproxy.io.BoundedPipe;
+import io.siggi.simplehttpproxy.io.BufferPool;
+import io.siggi.simplehttpproxy.io.ChunkedInputStream;
 import io.siggi.simplehttpproxy.io.ChunkedOutputStream;
+import io.siggi.simplehttpproxy.io.CompressingOutputStream;
+import io.siggi.simplehttpproxy.io.FileTransfer;
 import io.siggi.simplehttpproxy.io.SecureBufferedInputStream;
 import io.siggi.simplehttpproxy.io.SometimesTimeoutInputStream;
-import io.siggi.simplehttpproxy.io.SubInputStream;
-import io.siggi.simplehttpproxy.io.TeeOutputStream;
 import io.siggi.simplehttpproxy.net.SslProxy;
-import io.siggi.simplehttpproxy.util.CaseInsensitiveHashMap;
+import io.siggi.simplehttpproxy.util.ByteRange;
 import io.siggi.simplehttpproxy.util.CloudFlare;
+import io.siggi.simplehttpproxy.util.HeaderMap;
+import io.siggi.simplehttpproxy.util.HeaderParser;
+import io.siggi.simplehttpproxy.util.HeaderWriter;
 import io.siggi.simplehttpproxy.util.HttpHeader;
+import io.siggi.simplehttpproxy.util.Metrics;
+import io.siggi.simplehttpproxy.util.Options;
 import io.siggi.simplehttpproxy.util.TrustForward;
 import io.siggi.simplehttpproxy.util.Util;
 
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,41 +37,139 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
 public class ProxyHandler {
 
-    private static int nextConnectionId = 0;
+    private static final AtomicInteger nextConnectionId = new AtomicInteger();
+    private static final byte[] overloadedResponse = ("HTTP/1.1 503 Service Unavailable\r\n"
+            + "Server: Siggi-SimpleHttpProxy\r\n"
+            + "Retry-After: 5\r\n"
+            + "Cache-Control: private, max-age=0\r\n"
+            + "Content-Type: text/plain; charset=UTF-8\r\n"
+            + "Content-Length: 23\r\n"
+            + "Connection: close\r\n"
+            + "\r\n"
+            + "503 Service Unavailable").getBytes(StandardCharsets.UTF_8);
+    // how long to wait for the backend to start sending a slice
+    private static final long sliceTimeout = 30000L;
+    private static final byte[] endOfHeader = "\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final Metrics.Counter pipelinedBatches = Metrics.counter("pipeline.batches");
+    private static final Metrics.Counter pipelinedRequests = Metrics.counter("pipeline.requests");
+    // the parts of the proxy's own responses that never change, encoded once
+    private static final byte[] keepAliveLines = HeaderWriter.encode("Connection: Keep-Alive", "Keep-Alive: timeout=60");
+    private static final byte[] closeLines = HeaderWriter.encode("Connection: close");
+    private static final byte[] head200 = syntheticHead("200 OK", "private, max-age=0", null);
+    private static final byte[] head301 = syntheticHead("301 Moved Permanently", "private, max-age=0", "text/plain; charset=UTF-8");
+    private static final byte[] head302 = syntheticHead("302 Found", "private, max-age=0", "text/plain; charset=UTF-8");
+    private static final byte[] head400 = syntheticHead("400 Bad Request", "private, max-age=0", "text/plain; charset=UTF-8");
+    private static final byte[] head401 = syntheticHead("401 Unauthorized", "private, max-age=0", "text/plain; charset=UTF-8");
+    private static final byte[] head403 = syntheticHead("403 Forbidden", "private, max-age=120", "text/plain; charset=UTF-8");
+    private static final byte[] head404 = syntheticHead("404 Not Found", "private, max-age=0", "text/plain; charset=UTF-8");
+    private static final byte[] head429 = syntheticHead("429 Too Many Requests", "private, max-age=15", "text/html; charset=UTF-8");
+    private static final byte[] head500 = syntheticHead("500 Internal Server Error", "private, max-age=15", "text/plain; charset=UTF-8");
+    private static final byte[] head502 = syntheticHead("502 Bad Gateway", "private, max-age=15", "text/plain; charset=UTF-8");
+    private static final byte[] head503 = syntheticHead("503 Service Unavailable", "private, max-age=15", "text/plain; charset=UTF-8");
+    private static final byte[] head503Custom = syntheticHead("503 Service Unavailable", "private, max-age=15", "text/html; charset=UTF-8");
+    private static final byte[] body400 = "400 Bad Request".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] body401 = "401 Unauthorized".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] body404 = "404 Not Found".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] body500 = "500 Internal Server Error".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] body502 = "502 Bad Gateway".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] body503 = "503 Service Unavailable".getBytes(StandardCharsets.UTF_8);
     private final SimpleHttpProxy proxyServer;
     private final CacheManager cacheManager;
+    private final UpstreamPool upstreamPool;
     private final boolean secure;
+    private final SelectorFrontEnd frontEnd;
+    private final int pipelineDepth;
+    private final long collapseTimeout; // how long to wait for another request's fetch of a cache miss
+    private final int bodyBufferSize; // for copying request and response bodies
+    // serves a single request on behalf of another handler, for pipelining and HTTP/2 streams
+    private final boolean subRequest;
     // TODO: make this configurable
     private final boolean allowConnectionReuse = true;
+    private final Socket rawSocket;
     private Socket clientSocket;
     private SecureBufferedInputStream clientIn;
+    private final HeaderParser headerParser = new HeaderParser();
     private OutputStream clientOut;
     private List<String> injectXForwardedFor = null;
-    private String lastHost = null;
-    private String lastAddr = null;
-    private Socket serverSocket;
-    private SometimesTimeoutInputStream serverIn;
-    private OutputStream serverOut;
+    private UpstreamConnection upstream;
+    private boolean upstreamReusable = false; // the last response said Keep-Alive
+    private boolean upstreamFailed = false; // the request body couldn't be sent completely
     private boolean keepAlive = true;
     private boolean started = false;
     private ForwardingSettingsMatch settingsMatch = null;
     private ForwardingSettings settings = null;
+    // connection state that has to survive while the connection is parked in a SelectorFrontEnd
+    private int connectionId;
+    private int requestsReceived = 0; // on current upstream connection
+    private String parkedLogLine = null;
+
     public ProxyHandler(SimpleHttpProxy proxyServer, boolean secure, Socket clientSocket) throws IOException {
+        this(proxyServer, secure, clientSocket, null);
+    }
+
+    ProxyHandler(SimpleHttpProxy proxyServer, boolean secure, Socket clientSocket, SelectorFrontEnd frontEnd) throws IOException {
         this.proxyServer = proxyServer;
         this.cacheManager = proxyServer.getCacheManager();
+        this.upstreamPool = proxyServer.getUpstreamPool();
+        this.rawSocket = clientSocket;
         this.clientSocket = clientSocket;
         this.secure = secure;
+        this.frontEnd = frontEnd;
+        this.pipelineDepth = Options.getInt("pipeline.depth", 8);
+        this.collapseTimeout = Options.getLong("cache.collapse.timeout", 10000L);
+        this.bodyBufferSize = Options.getInt("buffer.body", BufferPool.MEDIUM);
+        this.subRequest = false;
         clientSocket.setSoTimeout(120000); // we announce Keep-Alive timeout=60, but we'll wait up to 2 minutes
     }
 
-    private static synchronized int nextConnectionId() {
-        return ++nextConnectionId;
+    private ProxyHandler(ProxyHandler parent, InputStream request, OutputStream response) {
+        this.proxyServer = parent.proxyServer;
+        this.cacheManager = parent.cacheManager;
+        this.upstreamPool = parent.upstreamPool;
+        this.rawSocket = parent.rawSocket;
+        this.clientSocket = parent.clientSocket;
+        this.secure = parent.secure;
+        this.frontEnd = null;
+        this.pipelineDepth = 0;
+        this.collapseTimeout = parent.collapseTimeout;
+        this.bodyBufferSize = parent.bodyBufferSize;
+        this.subRequest = true;
+        this.started = true;
+        this.clientIn = new SecureBufferedInputStream(request, 16384);
+        this.clientOut = response;
+        this.injectXForwardedFor = parent.injectXForwardedFor;
+        this.connectionId = parent.connectionId;
+    }
+
+    /**
+     * Create a handler that serves a single request on this handler's client
+     * connection. Run it with {@link #requestLoop()}.
+     *
+     * @param request the request header, followed by its body if it has one
+     * @param response where the HTTP/1.1 response will be written
+     * @return the handler
+     */
+    ProxyHandler createSubHandler(InputStream request, OutputStream response) {
+        return new ProxyHandler(this, request, response);
+    }
+
+    private static int nextConnectionId() {
+        return nextConnectionId.incrementAndGet();
     }
 
     private static void upgrade(Socket clientSocket, Socket serverSocket) {
@@ -69,6 +177,336 @@ public class ProxyHandler {
         upp.start();
     }
 
+    /**
+     * The headers to send to a client for a response served from the cache.
+     *
+     * @param clientAcceptsGzip false if a gzipped response has to be
+     * decompressed for this client
+     */
+    private static HttpHeader cachedResponseHeaders(CacheObject cacheObject, HttpHeader cachedHeader, String cacheStatus, boolean clientAcceptsGzip) {
+        HttpHeader headers = cachedHeader.copy();
+        headers.deleteHeader("Transfer-Encoding");
+        headers.deleteHeader("Set-Cookie");
+        headers.deleteHeader(CacheObject.compressedHeader);
+        long length = cacheObject.getContentLength();
+        if (cacheObject.isGzip()) {
+            // the same cached response serves all encodings
+            addVaryAcceptEncoding(headers);
+            if (!clientAcceptsGzip) {
+                headers.deleteHeader("Content-Encoding");
+                length = cacheObject.getUncompressedLength();
+            } else if (cacheObject.isCompressedByCache()) {
+                weakenETag(headers);
+            }
+        }
+        if (length >= 0L) {
+            headers.setHeader("Content-Length", Long.toString(length));
+            if (!cacheObject.isGzip() || (!clientAcceptsGzip && cacheObject.isCompressedByCache())) {
+                headers.setHeader("Accept-Ranges", "bytes");
+            }
+        } else {
+            headers.deleteHeader("Content-Length");
+            headers.setHeader("Transfer-Encoding", "chunked");
+        }
+        headers.setHeader("X-SHP-Cache", cacheStatus);
+        return headers;
+    }
+
+    /**
+     * The length a client's ranges are counted in when they're served from a
+     * cached response: that of the body the backend would send this client.
+     *
+     * @return -1 if the ranges can't be served from the cached response
+     */
+    private static long rangeLength(CacheObject cacheObject, boolean clientAcceptsGzip) {
+        if (!cacheObject.isGzip()) {
+            return cacheObject.getContentLength();
+        }
+        if (cacheObject.isCompressedByCache()) {
+            return cacheObject.getUncompressedLength();
+        }
+        return clientAcceptsGzip ? cacheObject.getContentLength() : -1L;
+    }
+
+    private static void addVaryAcceptEncoding(HttpHeader headers) {
+        List<String> vary = headers.getHeaders("Vary");
+        if (vary == null || !String.join(",", vary).toLowerCase().contains("accept-encoding")) {
+            headers.addHeader("Vary", "Accept-Encoding");
+        }
+    }
+
+    /**
+     * Weaken the ETag of a response that's no longer byte for byte what the
+     * backend's ETag stands for.
+     */
+    private static void weakenETag(HttpHeader headers) {
+        String etag = headers.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            headers.setHeader("ETag", "W/" + etag);
+        }
+    }
+
+    private static boolean acceptsGzip(HttpHeader requestHeader) {
+        return acceptsEncoding(requestHeader, "gzip");
+    }
+
+    /**
+     * @param coding the content coding, gzip also matches x-gzip
+     * @return whether the request's Accept-Encoding allows the coding
+     */
+    private static boolean acceptsEncoding(HttpHeader requestHeader, String coding) {
+        List<String> headers = requestHeader.getHeaders("Accept-Encoding");
+        if (headers == null) {
+            return false;
+        }
+        for (String header : headers) {
+            for (String accepted : header.split(",")) {
+                String[] parts = accepted.split(";");
+                String name = parts[0].trim().toLowerCase();
+                if (!name.equals(coding) && !name.equals("*") && !(coding.equals("gzip") && name.equals("x-gzip"))) {
+                    continue;
+                }
+                boolean refused = false;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            refused = Double.parseDouble(param.substring(2)) <= 0.0;
+                        } catch (NumberFormatException e) {
+                        }
+                    }
+                }
+                if (!refused) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pick how to compress a response from the backend for a client, if at
+     * all. Only complete responses of a compressible type that aren't encoded
+     * yet are compressed.
+     *
+     * @return gzip or deflate, or null to send it as it is
+     */
+    private static String compressionFor(HttpHeader requestHeader, HttpHeader responseHeader, ForwardingSettings settings) {
+        String firstLine = responseHeader.getFirstLine();
+        if (!firstLine.substring(firstLine.indexOf(" ") + 1).startsWith("200 ")
+                || responseHeader.getHeader("Content-Encoding") != null
+                || responseHeader.getHeader("Content-Range") != null
+                || !settings.isCompressibleType(responseHeader.getHeader("Content-Type"))) {
+            return null;
+        }
+        List<String> cacheControl = responseHeader.getHeaders("Cache-Control");
+        if (cacheControl != null && String.join(",", cacheControl).toLowerCase().contains("no-transform")) {
+            return null;
+        }
+        try {
+            if (Long.parseLong(responseHeader.getHeader("Content-Length")) < settings.compressMinSize) {
+                return null;
+            }
+        } catch (Exception e) {
+        }
+        if (acceptsEncoding(requestHeader, "gzip")) {
+            return "gzip";
+        } else if (acceptsEncoding(requestHeader, "deflate")) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    /**
+     * Send the requested ranges of a cached response, as multipart/byteranges
+     * if there's a boundary.
+     */
+    private static void writeRanges(CacheObject cacheObject, List<ByteRange> ranges, long total, String boundary, SocketChannel channel, OutputStream out) throws IOException {
+        String contentType = cacheObject.getResponseHeader().getHeader("Content-Type");
+        for (ByteRange range : ranges) {
+            if (boundary != null) {
+                out.write(multipartPartHeader(boundary, contentType, range, total));
+            }
+            if (cacheObject.isCompressedByCache()) {
+                cacheObject.writeUncompressedBody(range.start, range.length(), out);
+            } else {
+                cacheObject.writeBody(range.start, range.length(), channel, out);
+            }
+        }
+        if (boundary != null) {
+            out.write(multipartEnd(boundary));
+        }
+    }
+
+    /**
+     * Serve a response from slices that are cached separately, fetching the
+     * ones that aren't cached yet with range requests. Only the slices
+     * covering what the client asked for are needed, plus the first one for
+     * the headers and total length.
+     *
+     * @return a note for the log, or null if the backend doesn't answer range
+     * requests for this and nothing was sent, so it has to be proxied as usual
+     */
+    private String serveSliced(String cacheIdentifier, String backendServer, HttpHeader requestHeader, long sliceSize,
+            String ifNoneMatch, String ifModifiedSince, String rangeHeader, String ifRange) throws IOException {
+        CacheObject first = getSlice(cacheIdentifier, backendServer, requestHeader, sliceSize, 0L, null);
+        if (first == null) {
+            cacheManager.markUnsliceable(cacheIdentifier);
+            return null;
+        }
+        long total = sliceTotal(first);
+        HttpHeader responseHeader = cachedResponseHeaders(first, first.getResponseHeader(), "sliced", true);
+        responseHeader.setFirstLine("HTTP/1.1 200 OK");
+        responseHeader.deleteHeader("Content-Range");
+        responseHeader.setHeader("Content-Length", Long.toString(total));
+        boolean notModified = first.isNotModified(ifNoneMatch, ifModifiedSince);
+        long start = 0L;
+        long end = total - 1L;
+        // several ranges get the whole response
+        List<ByteRange> ranges = first.isRangeCurrent(ifRange) ? ByteRange.parse(rangeHeader, total) : null;
+        if (notModified) {
+            responseHeader.setFirstLine("HTTP/1.1 304 Not Modified");
+            responseHeader.deleteHeader("Content-Length");
+        } else if (ranges != null && ranges.size() == 1) {
+            start = ranges.get(0).start;
+            end = ranges.get(0).end;
+            responseHeader.setFirstLine("HTTP/1.1 206 Partial Content");
+            responseHeader.setHeader("Content-Range", ranges.get(0).contentRange(total));
+            responseHeader.setHeader("Content-Length", Long.toString(ranges.get(0).length()));
+        }
+        addHstsHeader(responseHeader);
+        injectHeaders(settings.injectHeadersToClient, responseHeader);
+        keepAliveHeaders(responseHeader);
+        Util.writeHeader(clientOut, responseHeader);
+        if (notModified) {
+            return " -> " + responseHeader.getFirstLine() + " (sliced)";
+        }
+        for (long index = start / sliceSize; index <= end / sliceSize; index++) {
+            CacheObject slice = index == 0L ? first : getSlice(cacheIdentifier, backendServer, requestHeader, sliceSize, index, first);
+            if (slice == null) {
+                // the headers are out already, all we can do is cut the client off
+                cacheManager.markUnsliceable(cacheIdentifier);
+                throw new IOException("Slice " + index + " of " + cacheIdentifier + " unavailable");
+            }
+            long sliceStart = index * sliceSize;
+            long from = Math.max(start, sliceStart) - sliceStart;
+            long to = Math.min(end, sliceStart + slice.getContentLength() - 1L) - sliceStart;
+            try (InputStream in = slice.getInputStream(from, to - from + 1L)) {
+                Util.copy(in, clientOut, bodyBufferSize, null);
+            }
+        }
+        return " -> " + responseHeader.getFirstLine() + " (sliced)";
+    }
+
+    /**
+     * Get a slice from the cache, or fetch it if it isn't cached, belongs to
+     * an older version of the response than the first slice or is short.
+     *
+     * @return the slice, possibly still arriving, or null if it couldn't be
+     * fetched completely
+     */
+    private CacheObject getSlice(String cacheIdentifier, String backendServer, HttpHeader requestHeader, long sliceSize, long index, CacheObject first) {
+        // the size is part of the identifier so changing it doesn't mix up slices
+        String sliceIdentifier = cacheIdentifier + "#slice=" + sliceSize + ":" + index;
+        CacheObject slice = cacheManager.retrieveCacheObject(sliceIdentifier, requestHeader);
+        if (slice != null && isUsableSlice(slice, sliceSize, index, first)) {
+            return slice;
+        }
+        InFlightFetch fetch = cacheManager.startFetch(sliceIdentifier);
+        if (fetch != null) {
+            new SliceFetch(upstreamPool, cacheManager, backendServer, sliceIdentifier, requestHeader,
+                    index * sliceSize, sliceSize, first, fetch).start();
+        }
+        slice = cacheManager.awaitFetch(sliceIdentifier, requestHeader, sliceTimeout);
+        if (slice == null) {
+            // it may have been cached before we started waiting
+            slice = cacheManager.retrieveCacheObject(sliceIdentifier, requestHeader);
+        }
+        if (slice != null && !isUsableSlice(slice, sliceSize, index, first)) {
+            return null;
+        }
+        return slice;
+    }
+
+    /**
+     * Whether a slice is part of the same version of the response as the
+     * first slice and covers all of its part of it. A slice that falls short
+     * would leave the client with less than the Content-Length it was sent.
+     */
+    private static boolean isUsableSlice(CacheObject slice, long sliceSize, long index, CacheObject first) {
+        if (first != null && !isSameVersion(first, slice)) {
+            return false;
+        }
+        long total = sliceTotal(slice);
+        long sliceStart = index * sliceSize;
+        long expected = Math.min(sliceSize, total - sliceStart);
+        if (total <= 0L || expected <= 0L || slice.getContentLength() != expected) {
+            return false;
+        }
+        String contentRange = slice.getResponseHeader().getHeader("Content-Range");
+        try {
+            int dash = contentRange.indexOf('-');
+            return Long.parseLong(contentRange.substring(contentRange.indexOf(' ') + 1, dash).trim()) == sliceStart
+                    && Long.parseLong(contentRange.substring(dash + 1, contentRange.indexOf('/')).trim()) == sliceStart + expected - 1L;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static boolean isSameVersion(CacheObject a, CacheObject b) {
+        HttpHeader aHeader = a.getResponseHeader();
+        HttpHeader bHeader = b.getResponseHeader();
+        return Objects.equals(aHeader.getHeader("ETag"), bHeader.getHeader("ETag"))
+                && Objects.equals(aHeader.getHeader("Last-Modified"), bHeader.getHeader("Last-Modified"))
+                && sliceTotal(a) == sliceTotal(b);
+    }
+
+    /**
+     * @return the length of the whole response a slice is part of, from its
+     * Content-Range, or -1 if it's unknown
+     */
+    private static long sliceTotal(CacheObject slice) {
+        String contentRange = slice.getResponseHeader().getHeader("Content-Range");
+        try {
+            return Long.parseLong(contentRange.substring(contentRange.indexOf("/") + 1).trim());
+        } catch (Exception e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * @return the client's socket channel if responses can be written to it
+     * directly, with sendfile, or null if they have to go through clientOut
+     */
+    private SocketChannel sendfileChannel() {
+        if (subRequest || clientSocket instanceof SSLSocket) {
+            return null;
+        }
+        return clientSocket.getChannel();
+    }
+
+    private static byte[] multipartPartHeader(String boundary, String contentType, ByteRange range, long total) {
+        return ("\r\n--" + boundary + "\r\n"
+                + (contentType == null ? "" : "Content-Type: " + contentType + "\r\n")
+                + "Content-Range: " + range.contentRange(total) + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] multipartEnd(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param window how long after expiry the response allows it, -1 if it
+     * doesn't say
+     * @param defaultWindow the route's default, in seconds
+     */
+    private static boolean isWithinStaleWindow(CacheObject cacheObject, long window, long defaultWindow) {
+        if (window < 0L) {
+            window = defaultWindow * 1000L;
+        }
+        return System.currentTimeMillis() - cacheObject.getExpiryDate() <= window;
+    }
+
     private static boolean isSafeMethod(String requestLine) {
         String method;
         if (requestLine.contains(" ")) {
@@ -114,29 +552,163 @@ public class ProxyHandler {
             return;
         }
         started = true;
-        ThreadCreator.createThread(this::handler, null, false, true).start();
+        dispatch(this::handler);
+    }
+
+    /**
+     * Continue serving a connection that was parked in a SelectorFrontEnd and
+     * has become readable again.
+     */
+    void wake() {
+        if (!started) {
+            start();
+            return;
+        }
+        dispatch(this::requestLoop);
+    }
+
+    private void dispatch(Runnable task) {
+        HandlerPool pool = proxyServer.getHandlerPool();
+        if (!pool.execute(task)) {
+            // the caller is an accept loop or the selector thread, neither can wait on a slow client
+            pool.shed(this::overloaded, this::abort);
+        }
+    }
+
+    /**
+     * Shed this connection because the handler pool is full. Runs on one of
+     * the HandlerPool's shedding threads, writing the response can block.
+     */
+    private void overloaded() {
+        try {
+            if (clientOut != null) {
+                clientOut.write(overloadedResponse);
+                clientOut.flush();
+            } else if (secure) {
+                rawSocket.getOutputStream().write(proxyServer.getOverloadedAlert());
+            } else {
+                rawSocket.getOutputStream().write(overloadedResponse);
+            }
+        } catch (Exception e) {
+        }
+        close();
+    }
+
+    /**
+     * Called by the SelectorFrontEnd when a parked connection has been idle for
+     * too long.
+     */
+    void idleTimeout() {
+        if (clientOut != null) {
+            try {
+                clientOut.write("HTTP/1.1 408 Request Timeout\r\n".getBytes(StandardCharsets.UTF_8));
+                clientOut.write("Connection: close\r\n".getBytes(StandardCharsets.UTF_8));
+                clientOut.write("\r\n".getBytes(StandardCharsets.UTF_8));
+                clientOut.flush();
+            } catch (Exception e) {
+            }
+        }
+        close();
+    }
+
+    /**
+     * Reset the connection without telling the client why, for when there
+     * isn't even room to shed it politely.
+     */
+    private void abort() {
+        try {
+            rawSocket.setSoLinger(true, 0);
+        } catch (Exception e) {
+        }
+        close();
+    }
+
+    void close() {
+        try {
+            clientSocket.close();
+        } catch (Exception e) {
+        }
+        try {
+            rawSocket.close();
+        } catch (Exception e) {
+        }
+        closeUpstream();
+    }
+
+    /**
+     * Give the backend connection back to the UpstreamPool if the last
+     * exchange on it completed cleanly, otherwise close it.
+     */
+    private void releaseUpstream() {
+        if (upstream == null) {
+            return;
+        }
+        if (upstreamReusable && !upstreamFailed) {
+            upstreamPool.release(upstream);
+            upstream = null;
+        } else {
+            closeUpstream();
+        }
+    }
+
+    private void closeUpstream() {
+        if (upstream != null) {
+            upstream.close();
+            upstream = null;
+        }
+    }
+
+    Socket getRawSocket() {
+        return rawSocket;
+    }
+
+    /**
+     * Whether the selector would notice the next request arriving. Over TLS,
+     * data can be buffered inside the SSLSocket where the raw socket doesn't
+     * show it. The JDK's own SSLSocket reads one record at a time and counts
+     * decrypted data in available(), other TLS implementations may read ahead,
+     * so their connections are never parked.
+     */
+    private boolean nothingBuffered() throws IOException {
+        if (clientIn.available() != 0) {
+            return false;
+        }
+        return !(clientSocket instanceof SSLSocket) || clientSocket.getClass().getName().startsWith("sun.security.ssl.");
     }
 
     private void addHstsHeader(HttpHeader header) {
         if (settings == null) {
             return;
         }
-        if (settings.hstsTimeout < 0L) {
+        String hsts = hstsValue();
+        if (hsts == null) {
             header.deleteHeader("Strict-Transport-Security");
         } else {
-            String suffix = "";
-            if (settings.hstsIncludeSubdomains) {
-                suffix += "; includeSubDomains";
-            }
-            if (settings.hstsPreload) {
-                suffix += "; preload";
-            }
-            header.addHeader("Strict-Transport-Security", "max-age=" + settings.hstsTimeout + suffix);
+            header.addHeader("Strict-Transport-Security", hsts);
         }
     }
 
+    /**
+     * @return the Strict-Transport-Security header for this route, or null if
+     * it shouldn't have one
+     */
+    private String hstsValue() {
+        if (settings == null || settings.hstsTimeout < 0L) {
+            return null;
+        }
+        String suffix = "";
+        if (settings.hstsIncludeSubdomains) {
+            suffix += "; includeSubDomains";
+        }
+        if (settings.hstsPreload) {
+            suffix += "; preload";
+        }
+        return "max-age=" + settings.hstsTimeout + suffix;
+    }
+
     private void handler() {
         injectXForwardedFor = null;
+        String applicationProtocol = null;
         try {
             if (secure) {
                 SimpleHttpProxy.SSLUpgradeResult upgradeResult = proxyServer.upgradeSSL(clientSocket);
@@ -160,6 +732,7 @@ public class ProxyHandler {
                     return;
                 }
                 SSLSocket ssl = upgradeResult.socket;
+                applicationProtocol = upgradeResult.applicationProtocol;
                 injectXForwardedFor = upgradeResult.injectXForwardedFor;
                 clientSocket = ssl;
             }
@@ -173,25 +746,56 @@ public class ProxyHandler {
             }
             return;
         }
+        connectionId = nextConnectionId();
+        if ("h2".equals(applicationProtocol)) {
+            new Http2Connection(proxyServer, this, clientIn, clientOut).run();
+            return;
+        }
+        requestLoop();
+    }
+
+    void requestLoop() {
         boolean doNotClose = false;
         boolean wroteToClient = false;
         boolean receivedRequest = false;
         boolean send408 = false;
         try {
-            int connectionId = nextConnectionId();
-            int downstreamId = 0;
-
-            long reuseTimeout = 0L; // expiry time for downstream connection reuse
-            int requestsReceived = 0; // on current upstream connection
-            int requestsForwarded = 0; // on current downstream connection
-            int maxDownstreamRequests = 1;
-
-            String logLine = null;
+            String logLine = parkedLogLine;
+            parkedLogLine = null;
             InputStream wrappedIn = null;
             HttpHeader downstreamHeaders;
             Thread downstreamBodyForwarder = null;
+            // always serve at least one read after waking up, otherwise a connection that
+            // became readable because the client closed it would be parked forever
+            boolean mayPark = false;
             outerLoop:
             while (keepAlive) {
+                if (downstreamBodyForwarder != null) {
+                    downstreamBodyForwarder.join();
+                    downstreamBodyForwarder = null;
+                    releaseUpstream();
+                    if (!keepAlive) {
+                        break;
+                    }
+                }
+                if (mayPark && subRequest) {
+                    // it has been answered, and the connection belongs to someone else
+                    receivedRequest = false;
+                    break;
+                }
+                if (mayPark && frontEnd != null && nothingBuffered()) {
+                    // nothing buffered, let the selector wait for the next request
+                    parkedLogLine = logLine;
+                    doNotClose = true;
+                    frontEnd.park(this);
+                    return;
+                }
+                mayPark = true;
+                if (servePipelinedRequests()) {
+                    // like after any other request, so the next read isn't logged as a dropped connection
+                    logLine = "";
+                    continue;
+                }
                 String sourceIP = clientSocket.getInetAddress().getHostAddress();
                 String clientIP = sourceIP;
                 downstreamHeaders = null;
@@ -203,18 +807,12 @@ public class ProxyHandler {
                 this.settingsMatch = null;
                 this.settings = null;
                 CacheBuilder cacheBuilder = null;
+                InFlightFetch inFlightFetch = null;
                 try {
-                    if (downstreamBodyForwarder != null) {
-                        downstreamBodyForwarder.join();
-                        downstreamBodyForwarder = null;
-                        if (!keepAlive) {
-                            break;
-                        }
-                    }
                     wroteToClient = false;
                     receivedRequest = false;
                     send408 = true;
-                    downstreamHeaders = Util.readHeader(clientIn, 16384);
+                    downstreamHeaders = headerParser.read(clientIn, 16384);
                     send408 = false;
                     receivedRequest = true;
                     if (downstreamHeaders == null) {
@@ -358,36 +956,16 @@ public class ProxyHandler {
                                     boolean partialContent = false;
                                     long partialStart = 0L;
                                     long partialEnd = 0L;
-                                    String rangeHeader = downstreamHeaders.getHeader("Range");
-                                    if (rangeHeader != null && !rangeHeader.isEmpty()) {
-                                        try {
-                                            if (rangeHeader.startsWith("bytes=")) {
-                                                rangeHeader = rangeHeader.substring(6).trim();
-                                                int pos = rangeHeader.indexOf("-");
-                                                if (pos == -1) {
-                                                    partialStart = Long.parseLong(rangeHeader);
-                                                    partialContent = true;
-                                                } else {
-                                                    String l = rangeHeader.substring(0, pos);
-                                                    String r = rangeHeader.substring(pos + 1);
-                                                    partialStart = Long.parseLong(l);
-                                                    if (r.isEmpty()) {
-                                                        partialEnd = -1L;
-                                                    } else {
-                                                        partialEnd = Long.parseLong(r);
-                                                    }
-                                                    if (partialEnd <= f.length() - 1L)
-                                                        partialContent = true;
-                                                }
-                                            }
-                                        } catch (Exception e) {
-                                        }
+                                    // multiple ranges get the whole file, as do ranges that can't be satisfied
+                                    List<ByteRange> ranges = ByteRange.parse(downstreamHeaders.getHeader("Range"), f.length());
+                                    if (ranges != null && ranges.size() == 1) {
+                                        partialContent = true;
+                                        partialStart = ranges.get(0).start;
+                                        partialEnd = ranges.get(0).end;
                                     }
-                                    HttpHeader resultHeader = new HttpHeader(partialContent ? "HTTP/1.1 206 Partial Content" : "HTTP/1.1 200 OK", new CaseInsensitiveHashMap<>());
+                                    HttpHeader resultHeader = new HttpHeader(partialContent ? "HTTP/1.1 206 Partial Content" : "HTTP/1.1 200 OK", new HeaderMap());
                                     long amountToWrite = f.length();
                                     if (partialContent) {
-                                        if (partialEnd == -1L)
-                                            partialEnd = f.length() - 1;
                                         resultHeader.addHeader("Content-Range", "bytes " + partialStart + "-" + partialEnd + "/" + f.length());
                                         amountToWrite = partialEnd - partialStart + 1L;
                                     }
@@ -403,17 +981,7 @@ public class ProxyHandler {
                                     resultHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
                                     Util.writeHeader(clientOut, resultHeader);
                                     if (!head) {
-                                        OutputStream wrapOutputStream = resultHeader.wrapOutputStream(clientOut);
-                                        try (FileInputStream fis = new FileInputStream(f)) {
-                                            InputStream in;
-                                            if (partialContent) {
-                                                fis.skip(partialStart);
-                                                in = new SubInputStream(fis, amountToWrite);
-                                            } else {
-                                                in = fis;
-                                            }
-                                            Util.copy(in, wrapOutputStream);
-                                        }
+                                        FileTransfer.transfer(f, partialContent ? partialStart : 0L, amountToWrite, sendfileChannel(), clientOut);
                                     }
                                     continue;
                                 }
@@ -509,18 +1077,86 @@ public class ProxyHandler {
                     int tries = -1;
                     String cacheIdentifier = backendServer + downstreamPath;
                     CacheObject cacheObject = null;
+                    CacheObject staleObject = null;
+                    boolean notModified = false;
+                    String clientIfNoneMatch = downstreamHeaders.getHeader("If-None-Match");
+                    String clientIfModifiedSince = downstreamHeaders.getHeader("If-Modified-Since");
+                    String clientRange = downstreamHeaders.getHeader("Range");
+                    String clientIfRange = downstreamHeaders.getHeader("If-Range");
+                    boolean clientAcceptsGzip = acceptsGzip(downstreamHeaders);
+                    List<ByteRange> ranges = null; // when serving part of a cached response
+                    long rangeTotal = -1L; // the length the ranges are counted in
+                    String multipartBoundary = null;
+                    String compressCoding = null; // when compressing the response for the client
                     String expect = downstreamHeaders.getHeader("Expect");
                     boolean expect100Continue = expect != null && expect.equalsIgnoreCase("100-continue");
+                    boolean clientAcceptsStale = false;
                     if (!expect100Continue && method.equals("GET") && settings.allowCache) {
                         cacheObject = cacheManager.retrieveCacheObject(cacheIdentifier, downstreamHeaders);
+                        clientAcceptsStale = CacheManager.acceptsStale(downstreamHeaders);
+                        if (cacheObject == null && settings.cacheSliceSize > 0L && !cacheManager.isUnsliceable(cacheIdentifier)) {
+                            String sliced = serveSliced(cacheIdentifier, backendServer, downstreamHeaders, settings.cacheSliceSize,
+                                    clientIfNoneMatch, clientIfModifiedSince, clientRange, clientIfRange);
+                            if (sliced != null) {
+                                logLine += sliced;
+                                continue;
+                            }
+                        }
+                        String cacheStatus = "hit";
+                        if (cacheObject == null) {
+                            staleObject = cacheManager.retrieveStaleCacheObject(cacheIdentifier, downstreamHeaders);
+                        }
+                        if (staleObject != null && clientAcceptsStale
+                                && isWithinStaleWindow(staleObject, staleObject.getStaleWhileRevalidate(), settings.staleWhileRevalidate)) {
+                            // serve it right away, and refresh it unless that's already happening
+                            InFlightFetch refresh = cacheManager.startFetch(cacheIdentifier);
+                            if (refresh != null) {
+                                new BackgroundRefresh(upstreamPool, cacheManager, backendServer, cacheIdentifier,
+                                        downstreamHeaders, staleObject, refresh).start();
+                            }
+                            cacheObject = staleObject;
+                            cacheStatus = "stale";
+                        } else if (cacheObject == null && collapseTimeout > 0L) {
+                            // if someone else is already fetching it, wait for them instead
+                            inFlightFetch = cacheManager.startFetch(cacheIdentifier);
+                            if (inFlightFetch == null) {
+                                cacheObject = cacheManager.awaitFetch(cacheIdentifier, downstreamHeaders, collapseTimeout);
+                                if (cacheObject != null) {
+                                    cacheStatus = "collapsed";
+                                } else {
+                                    // they may have revalidated it rather than fetching it again
+                                    cacheObject = cacheManager.retrieveCacheObject(cacheIdentifier, downstreamHeaders);
+                                }
+                            }
+                        }
+                        if (clientRange != null) {
+                            // ranges that can't be cut from the cached copy are left to the backend
+                            if (cacheObject != null && rangeLength(cacheObject, clientAcceptsGzip) < 0L) {
+                                cacheObject = null;
+                            }
+                            if (staleObject != null && rangeLength(staleObject, clientAcceptsGzip) < 0L) {
+                                staleObject = null;
+                            }
+                        }
                         if (cacheObject != null) {
-                            upstreamHeaders = cacheObject.getResponseHeader();
-                            upstreamHeaders.deleteHeader("Transfer-Encoding");
-                            upstreamHeaders.deleteHeader("Set-Cookie");
-                            upstreamHeaders.setHeader("Content-Length", Long.toString(cacheObject.getContentLength()));
-                            upstreamHeaders.setHeader("X-SHP-Cache", "hit");
+                            upstreamHeaders = cachedResponseHeaders(cacheObject, cacheObject.getResponseHeader(), cacheStatus, clientAcceptsGzip);
+                        } else if (staleObject != null && staleObject.isValidatable()) {
+                            // ask the backend whether our copy is still good instead of
+                            // passing on the client's validators
+                            HttpHeader staleHeader = staleObject.getResponseHeader();
+                            downstreamHeaders.deleteHeader("If-None-Match");
+                            downstreamHeaders.deleteHeader("If-Modified-Since");
+                            String etag = staleHeader.getHeader("ETag");
+                            if (etag != null) {
+                                downstreamHeaders.setHeader("If-None-Match", etag);
+                            }
+                            String lastModified = staleHeader.getHeader("Last-Modified");
+                            if (lastModified != null) {
+                                downstreamHeaders.setHeader("If-Modified-Since", lastModified);
+                            }
                         }
                     }
+                    SecureBufferedInputStream serverIn = null;
                     while (!wroteToClient) {
                         tries += 1;
                         if (tries != 0) {
@@ -528,62 +1164,60 @@ public class ProxyHandler {
                         }
                         clientIn.mark(524288); // 512kB
                         logLine = logLineA;
-                        boolean reuseConnection =
-                                allowConnectionReuse
-                                        && tries == 0
-                                        && isIdempotent(downstreamHeaders.getFirstLine())
-                                        && lastHost != null
-                                        && lastAddr != null
-                                        && host.equals(lastHost)
-                                        && backendServer.equals(lastAddr)
-                                        && serverIn.available() == 0
-                                ;
+                        boolean reusedConnection = false;
                         OutputStream wrappedOut;
                         sendReq:
                         if (cacheObject == null) {
+                            // left over from a failed attempt
+                            closeUpstream();
+                            upstreamReusable = false;
+                            upstreamFailed = false;
                             tryReuse:
-                            if (reuseConnection && requestsForwarded < maxDownstreamRequests && System.currentTimeMillis() < reuseTimeout) {
-                                try {
-                                    Util.writeHeader(serverOut, downstreamHeaders);
-                                } catch (Exception e) {
+                            if (allowConnectionReuse && tries == 0 && isIdempotent(downstreamHeaders.getFirstLine())) {
+                                upstream = upstreamPool.checkout(backendServer);
+                                if (upstream == null) {
                                     break tryReuse;
                                 }
-                                wrappedOut = downstreamHeaders.wrapOutputStream(serverOut);
-                                break sendReq;
-                            }
-                            if (serverSocket != null) {
                                 try {
-                                    serverSocket.close();
+                                    Util.writeHeader(upstream.out, downstreamHeaders);
                                 } catch (Exception e) {
+                                    closeUpstream();
+                                    break tryReuse;
                                 }
+                                reusedConnection = true;
+                                wrappedOut = downstreamHeaders.wrapOutputStream(upstream.out);
+                                break sendReq;
                             }
                             try {
-                                serverSocket = Util.connect(backendServer);
-                                serverSocket.setSoTimeout(300000);
-                                requestsForwarded = 0;
-                                maxDownstreamRequests = 1;
-                                downstreamId += 1;
+                                upstream = upstreamPool.connect(backendServer);
                             } catch (IOException ioe) {
+                                if (staleObject != null && clientAcceptsStale
+                                        && isWithinStaleWindow(staleObject, staleObject.getStaleIfError(), settings.staleIfError)) {
+                                    cacheObject = staleObject;
+                                    upstreamHeaders = cachedResponseHeaders(cacheObject, cacheObject.getResponseHeader(), "stale", clientAcceptsGzip);
+                                    logLine += " (backend down, served stale)";
+                                    wrappedOut = null;
+                                    break sendReq;
+                                }
                                 return502();
                                 continue outerLoop;
                             }
-                            serverIn = new SometimesTimeoutInputStream(serverSocket.getInputStream());
-                            serverOut = serverSocket.getOutputStream();
-                            Util.writeHeader(serverOut, downstreamHeaders);
-                            wrappedOut = downstreamHeaders.wrapOutputStream(serverOut);
-                            lastHost = host;
-                            lastAddr = backendServer;
+                            Util.writeHeader(upstream.out, downstreamHeaders);
+                            wrappedOut = downstreamHeaders.wrapOutputStream(upstream.out);
                         } else {
                             wrappedOut = null;
                         }
-                        requestsForwarded += 1;
-                        reuseTimeout = 0L;
-
-                        logLine += " (CID:" + connectionId + ",dCID:" + downstreamId + ",DR:" + requestsForwarded + ")";
+                        if (upstream != null) {
+                            serverIn = upstream.in;
+                            upstream.requestsForwarded += 1;
+                            logLine += " (CID:" + connectionId + ",dCID:" + upstream.id + ",DR:" + upstream.requestsForwarded + ")";
+                        } else {
+                            logLine += " (CID:" + connectionId + ")";
+                        }
 
                         boolean failed100Continue = false;
                         if (expect100Continue) {
-                            upstreamHeaders = Util.readHeader(serverIn, 65536);
+                            upstreamHeaders = upstream.readHeader();
                             addHstsHeader(upstreamHeaders);
                             upstreamHeaders.setHeader("Connection", "Keep-Alive");
                             upstreamHeaders.setHeader("Keep-Alive", "timeout=60");
@@ -600,31 +1234,28 @@ public class ProxyHandler {
                         if (!failed100Continue) {
                             if (cacheObject == null && wrappedIn != null && wrappedOut != null) {
                                 InputStream finalWrappedIn = wrappedIn;
-                                serverIn.setThrowTimeoutException(false);
+                                SometimesTimeoutInputStream finalServerIn = upstream.timeoutIn;
                                 wrappedIn = null;
-                                downstreamBodyForwarder = ThreadCreator.createThread(() -> {
-                                    try {
-                                        Util.copy(finalWrappedIn, wrappedOut);
-                                        if (wrappedOut instanceof ChunkedOutputStream) {
-                                            wrappedOut.close();
-                                        }
-                                    } catch (IOException e) {
-                                        keepAlive = false;
-                                    } finally {
+                                if (isBodyBuffered(downstreamHeaders)) {
+                                    // the whole body has already arrived, so forwarding it can't
+                                    // stall waiting on the client and doesn't need its own thread
+                                    forwardRequestBody(finalWrappedIn, wrappedOut);
+                                } else {
+                                    finalServerIn.setThrowTimeoutException(false);
+                                    downstreamBodyForwarder = ThreadCreator.createThread(() -> {
                                         try {
-                                            Util.copy(finalWrappedIn, null);
-                                        } catch (IOException ignored) {
+                                            forwardRequestBody(finalWrappedIn, wrappedOut);
+                                        } finally {
+                                            finalServerIn.setThrowTimeoutException(true);
                                         }
-                                        clientIn.eraseFreeSpace();
-                                        serverIn.setThrowTimeoutException(true);
-                                    }
-                                }, "", false, true);
-                                downstreamBodyForwarder.start();
+                                    }, "", false, true);
+                                    downstreamBodyForwarder.start();
+                                }
                             }
                             if (cacheObject == null) {
-                                upstreamHeaders = Util.readHeader(serverIn, 65536);
+                                upstreamHeaders = upstream.readHeader();
                                 if (upstreamHeaders == null) {
-                                    if (reuseConnection) continue;
+                                    if (reusedConnection) continue;
                                     throw new IOException("End of stream");
                                 }
                             }
@@ -639,7 +1270,18 @@ public class ProxyHandler {
                                     downstreamBodyForwarder.join();
                                     downstreamBodyForwarder = null;
                                 }
-                                upgrade(clientSocket, serverSocket);
+                                // whatever the backend sent right after the 101 was read along with it
+                                byte[] early = BufferPool.acquire(BufferPool.MEDIUM);
+                                try {
+                                    for (int available = serverIn.available(), c; available > 0; available -= c) {
+                                        c = serverIn.read(early, 0, Math.min(available, early.length));
+                                        clientOut.write(early, 0, c);
+                                    }
+                                } finally {
+                                    BufferPool.release(early);
+                                }
+                                upgrade(clientSocket, upstream.socket);
+                                upstream = null;
                                 doNotClose = true;
                                 return;
                             }
@@ -650,10 +1292,16 @@ public class ProxyHandler {
                                     // nothing to do
                                 } else if (connectionString.equalsIgnoreCase("Keep-Alive")) {
                                     upstreamKeepAlive = true;
-                                    if (maxDownstreamRequests == 1) {
-                                        maxDownstreamRequests = Integer.MAX_VALUE;
-                                    }
                                     String keepAliveString = upstreamHeaders.getHeader("Keep-Alive");
+                                    if (upstream != null && cacheObject == null) {
+                                        upstreamReusable = true;
+                                        if (upstream.maxRequests == 1) {
+                                            upstream.maxRequests = Integer.MAX_VALUE;
+                                        }
+                                    } else {
+                                        // served from cache, there's no backend connection to update
+                                        keepAliveString = null;
+                                    }
                                     if (keepAliveString != null) {
                                         String[] keepAliveParts = keepAliveString.split(",");
                                         for (String keepAlivePart : keepAliveParts) {
@@ -663,13 +1311,14 @@ public class ProxyHandler {
                                                     int timeout = Integer.parseInt(keepAlivePart.substring(8));
                                                     long timeoutMillis = (((long) timeout) * 1000L);
                                                     timeoutMillis /= 2L;
-                                                    reuseTimeout = System.currentTimeMillis() + timeoutMillis;
+                                                    upstream.expiry = System.currentTimeMillis() + timeoutMillis;
                                                 } catch (Exception e) {
                                                 }
                                             }
                                             if (keepAlivePart.startsWith("max=")) {
                                                 try {
-                                                    maxDownstreamRequests = Integer.parseInt(keepAlivePart.substring(4));
+                                                    // max counts the request this is the response to
+                                                    upstream.maxRequests = upstream.requestsForwarded - 1 + Integer.parseInt(keepAlivePart.substring(4));
                                                 } catch (Exception e) {
                                                 }
                                             }
@@ -686,12 +1335,65 @@ public class ProxyHandler {
                                     proxyServer.ban(clientIP);
                                 }
                             }
+                            if (staleObject != null && cacheObject == null) {
+                                String status = firstLine.substring(firstLine.indexOf(" ") + 1);
+                                if (status.startsWith("304 ") && staleObject.isValidatable()) {
+                                    // the backend confirmed our stale copy, serve that
+                                    cacheObject = cacheManager.refresh(staleObject, upstreamHeaders);
+                                    upstreamHeaders = cachedResponseHeaders(cacheObject, cacheObject.getResponseHeader(), "revalidated", clientAcceptsGzip);
+                                    addHstsHeader(upstreamHeaders);
+                                    logLine += " (revalidated)";
+                                } else if (status.startsWith("5") && clientAcceptsStale
+                                        && isWithinStaleWindow(staleObject, staleObject.getStaleIfError(), settings.staleIfError)) {
+                                    // the error body is never read, so the connection can't be reused
+                                    upstreamReusable = false;
+                                    closeUpstream();
+                                    cacheObject = staleObject;
+                                    upstreamHeaders = cachedResponseHeaders(cacheObject, cacheObject.getResponseHeader(), "stale", clientAcceptsGzip);
+                                    addHstsHeader(upstreamHeaders);
+                                    logLine += " (served stale)";
+                                }
+                            }
                             if (!expect100Continue && method.equals("GET") && settings.allowCache && cacheObject == null) {
-                                cacheBuilder = cacheManager.createCache(cacheIdentifier, downstreamHeaders, upstreamHeaders);
+                                cacheBuilder = cacheManager.createCache(cacheIdentifier, downstreamHeaders, upstreamHeaders, inFlightFetch);
                                 upstreamHeaders.setHeader("X-SHP-Cache", cacheBuilder == null ? "skipped" : "miss");
                             }
+                            if (cacheObject != null && cacheObject.isNotModified(clientIfNoneMatch, clientIfModifiedSince)) {
+                                upstreamHeaders.setFirstLine("HTTP/1.1 304 Not Modified");
+                                upstreamHeaders.deleteHeader("Content-Length");
+                                upstreamHeaders.deleteHeader("Transfer-Encoding");
+                                notModified = true;
+                                logLine += " (not modified)";
+                            }
+                            if (cacheObject != null && !notModified && clientRange != null && cacheObject.isRangeCurrent(clientIfRange)) {
+                                rangeTotal = rangeLength(cacheObject, clientAcceptsGzip);
+                                ranges = rangeTotal < 0L ? null : ByteRange.parse(clientRange, rangeTotal);
+                                if (ranges != null && cacheObject.isCompressedByCache()) {
+                                    // the ranges are of the body the backend sent, so they're served decompressed
+                                    upstreamHeaders = cachedResponseHeaders(cacheObject, cacheObject.getResponseHeader(),
+                                            upstreamHeaders.getHeader("X-SHP-Cache"), false);
+                                    addHstsHeader(upstreamHeaders);
+                                }
+                            }
+                            if (ranges != null) {
+                                upstreamHeaders.setFirstLine("HTTP/1.1 206 Partial Content");
+                                if (ranges.size() == 1) {
+                                    upstreamHeaders.setHeader("Content-Range", ranges.get(0).contentRange(rangeTotal));
+                                    upstreamHeaders.setHeader("Content-Length", Long.toString(ranges.get(0).length()));
+                                } else {
+                                    multipartBoundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+                                    String contentType = upstreamHeaders.getHeader("Content-Type");
+                                    long length = multipartEnd(multipartBoundary).length;
+                                    for (ByteRange range : ranges) {
+                                        length += multipartPartHeader(multipartBoundary, contentType, range, rangeTotal).length + range.length();
+                                    }
+                                    upstreamHeaders.setHeader("Content-Type", "multipart/byteranges; boundary=" + multipartBoundary);
+                                    upstreamHeaders.setHeader("Content-Length", Long.toString(length));
+                                }
+                                logLine += " (partial)";
+                            }
                             injectHeaders(settings.injectHeadersToClient, upstreamHeaders);
-                            if (!upstreamKeepAlive && upstreamHeaders.getHeader("Content-Encoding") != null) {
+                            if (!upstreamKeepAlive && !notModified && ranges == null && upstreamHeaders.getHeader("Content-Encoding") != null) {
                                 // Some webapps report uncompressed Content-Length when sending compressed data
                                 // This is incorrect behaviour
                                 // They also tend to send Connection: close
@@ -703,28 +1405,54 @@ public class ProxyHandler {
                             } else {
                                 forwardedUpstreamHeaders = upstreamHeaders;
                             }
+                            if (settings.compress && !notModified && ranges == null && (cacheObject == null || !cacheObject.isGzip())) {
+                                compressCoding = compressionFor(downstreamHeaders, forwardedUpstreamHeaders, settings);
+                                if (compressCoding != null) {
+                                    forwardedUpstreamHeaders = forwardedUpstreamHeaders.copy();
+                                    forwardedUpstreamHeaders.deleteHeader("Content-Length");
+                                    forwardedUpstreamHeaders.deleteHeader("Accept-Ranges");
+                                    forwardedUpstreamHeaders.setHeader("Transfer-Encoding", "chunked");
+                                    forwardedUpstreamHeaders.setHeader("Content-Encoding", compressCoding);
+                                    addVaryAcceptEncoding(forwardedUpstreamHeaders);
+                                    weakenETag(forwardedUpstreamHeaders);
+                                    logLine += " (" + compressCoding + ")";
+                                }
+                            }
                             keepAliveHeaders(forwardedUpstreamHeaders);
                             Util.writeHeader(clientOut, forwardedUpstreamHeaders);
                             wroteToClient = true;
                         }
                     }
+                    OutputStream upWrapOut = isHeadMethod || notModified ? null : forwardedUpstreamHeaders.wrapOutputStream(clientOut);
+                    if (compressCoding != null && upWrapOut != null) {
+                        upWrapOut = CompressingOutputStream.create(compressCoding, upWrapOut);
+                    }
+                    // a cached body with a known length can go out without being copied through a stream
+                    boolean decodeCached = cacheObject != null && cacheObject.isGzip() && !clientAcceptsGzip;
+                    boolean directBody = cacheObject != null && ranges == null && !decodeCached
+                            && upWrapOut == clientOut && cacheObject.getContentLength() >= 0L;
                     InputStream upWrapIn = cacheObject != null
-                            ? cacheObject.getInputStream()
+                            ? (notModified || ranges != null || directBody ? null
+                            : decodeCached ? new GZIPInputStream(cacheObject.getInputStream(), 65536) : cacheObject.getInputStream())
                             : (isHeadMethod ? null : upstreamHeaders.wrapInputStream(serverIn));
-                    OutputStream upWrapOut = isHeadMethod ? null : forwardedUpstreamHeaders.wrapOutputStream(clientOut);
-                    if (upWrapIn != null && upWrapOut != null) {
-                        OutputStream outDestination = upWrapOut;
-                        if (cacheBuilder != null) {
-                            outDestination = new TeeOutputStream(upWrapOut, cacheBuilder);
-                        }
-                        Util.copy(upWrapIn, outDestination);
+                    if (ranges != null && upWrapOut != null) {
+                        writeRanges(cacheObject, ranges, rangeTotal, multipartBoundary, upWrapOut == clientOut ? sendfileChannel() : null, upWrapOut);
+                    } else if (directBody) {
+                        cacheObject.writeBody(0L, cacheObject.getContentLength(), sendfileChannel(), clientOut);
+                    } else if (upWrapIn != null && upWrapOut != null) {
                         if (cacheBuilder != null) {
-                            cacheBuilder.finished();
+                            fillCache(upWrapIn, upWrapOut, cacheBuilder, inFlightFetch);
+                        } else {
+                            Util.copyStreaming(upWrapIn, upWrapOut, bodyBufferSize);
                         }
+                        passTrailers(upWrapIn, upWrapOut);
                     }
-                    if (upWrapOut instanceof ChunkedOutputStream) {
+                    if (upWrapOut instanceof ChunkedOutputStream || upWrapOut instanceof CompressingOutputStream) {
                         upWrapOut.close();
                     }
+                    if (downstreamBodyForwarder == null) {
+                        releaseUpstream();
+                    }
                 } finally {
                     if (logLine != null) {
                         log(logLine);
@@ -739,6 +1467,9 @@ public class ProxyHandler {
                         cacheBuilder.close();
                         cacheBuilder = null;
                     }
+                    if (inFlightFetch != null) {
+                        inFlightFetch.abandon();
+                    }
                 }
             }
         } catch (SocketTimeoutException ste) {
@@ -783,15 +1514,201 @@ public class ProxyHandler {
                 }
             }
             if (!doNotClose) {
+                if (!subRequest) {
+                    try {
+                        clientSocket.close();
+                    } catch (Exception e) {
+                    }
+                }
+                closeUpstream();
+            }
+        }
+    }
+
+    /**
+     * If the client has pipelined several requests and they are already in our
+     * buffer, read ahead and serve a batch of them at the same time. The first
+     * one is served on this thread and the rest on the handler pool, and their
+     * responses are buffered until it is their turn to be written.
+     *
+     * @return true if a batch was served
+     */
+    private boolean servePipelinedRequests() throws IOException {
+        if (pipelineDepth <= 1) {
+            return false;
+        }
+        int first = clientIn.indexOfBuffered(endOfHeader, 0);
+        if (first == -1 || clientIn.indexOfBuffered(endOfHeader, first + endOfHeader.length) == -1) {
+            return false;
+        }
+        List<ProxyHandler> batch = new ArrayList<>();
+        while (batch.size() < pipelineDepth && clientIn.indexOfBuffered(endOfHeader, 0) != -1) {
+            clientIn.mark(16384);
+            HttpHeader request = headerParser.read(clientIn, 16384);
+            if (request == null || !isPipelinable(request)) {
+                clientIn.reset();
+                break;
+            }
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            Util.writeHeader(serialized, request);
+            batch.add(new ProxyHandler(this, new ByteArrayInputStream(serialized.toByteArray()), null));
+        }
+        clientIn.discardMark();
+        if (batch.isEmpty()) {
+            return false;
+        }
+        pipelinedBatches.increment();
+        pipelinedRequests.add(batch.size());
+        BoundedPipe[] pipes = new BoundedPipe[batch.size()];
+        // whoever gets to a request first serves it, the pool or this thread when it's its turn
+        AtomicBoolean[] claimed = new AtomicBoolean[batch.size()];
+        for (int i = 1; i < batch.size(); i++) {
+            ProxyHandler handler = batch.get(i);
+            BoundedPipe pipe = new BoundedPipe(65536);
+            AtomicBoolean claim = new AtomicBoolean();
+            handler.clientOut = pipe.getOutputStream();
+            boolean accepted = proxyServer.getHandlerPool().execute(() -> {
+                if (!claim.compareAndSet(false, true)) {
+                    return;
+                }
                 try {
-                    clientSocket.close();
-                } catch (Exception e) {
+                    handler.requestLoop();
+                } finally {
+                    pipe.closeWrite();
+                }
+            });
+            if (accepted) {
+                pipes[i] = pipe;
+                claimed[i] = claim;
+            }
+        }
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                ProxyHandler handler = batch.get(i);
+                if (pipes[i] == null || claimed[i].compareAndSet(false, true)) {
+                    // not running yet, serve it now that it's its turn rather than wait for
+                    // a worker, which could be stuck behind connections waiting like this one
+                    handler.clientOut = clientOut;
+                    handler.requestLoop();
+                } else {
+                    Util.copy(pipes[i].getInputStream(), clientOut, bodyBufferSize, null);
                 }
+                if (!handler.keepAlive) {
+                    // it told the client the connection is closing
+                    keepAlive = false;
+                    break;
+                }
+            }
+        } finally {
+            for (BoundedPipe pipe : pipes) {
+                if (pipe != null) {
+                    pipe.closeRead();
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPipelinable(HttpHeader requestHeader) {
+        String firstLine = requestHeader.getFirstLine();
+        if (!firstLine.startsWith("GET ") && !firstLine.startsWith("HEAD ")) {
+            return false;
+        }
+        String contentLength = requestHeader.getHeader("Content-Length");
+        return (contentLength == null || contentLength.trim().equals("0"))
+                && requestHeader.getHeader("Transfer-Encoding") == null
+                && requestHeader.getHeader("Upgrade") == null
+                && requestHeader.getHeader("Expect") == null;
+    }
+
+    private boolean isBodyBuffered(HttpHeader requestHeader) throws IOException {
+        if (requestHeader.getHeader("Transfer-Encoding") != null) {
+            return false;
+        }
+        String contentLength = requestHeader.getHeader("Content-Length");
+        if (contentLength == null) {
+            return false;
+        }
+        try {
+            long length = Long.parseLong(contentLength);
+            return length <= 16384L && clientIn.available() >= length;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void forwardRequestBody(InputStream in, OutputStream out) {
+        try {
+            Util.copyStreaming(in, out, bodyBufferSize);
+            if (out instanceof ChunkedOutputStream) {
+                passTrailers(in, out);
+                out.close();
+            }
+        } catch (IOException e) {
+            keepAlive = false;
+            upstreamFailed = true;
+        } finally {
+            try {
+                Util.copy(in, null);
+            } catch (IOException ignored) {
+            }
+            clientIn.eraseFreeSpace();
+        }
+    }
+
+    /**
+     * Copy a response into the cache as fast as the backend sends it, while the
+     * client gets it read back from the cache on another thread like requests
+     * waiting for the same fetch do. That way a slow client doesn't hold them
+     * back, and if the client goes away the fill still finishes for them.
+     */
+    private void fillCache(InputStream in, OutputStream out, CacheBuilder cacheBuilder, InFlightFetch fetch) throws IOException, InterruptedException {
+        InputStream reader = cacheBuilder.openReader();
+        AtomicReference<IOException> clientFailure = new AtomicReference<>();
+        Thread clientFeed = ThreadCreator.createThread(() -> {
+            try {
+                Util.copyStreaming(reader, out, bodyBufferSize);
+                out.flush();
+            } catch (IOException e) {
+                clientFailure.set(e);
+            } finally {
                 try {
-                    serverSocket.close();
+                    reader.close();
                 } catch (Exception e) {
                 }
             }
+        }, "", false, true);
+        clientFeed.start();
+        try {
+            byte[] buffer = BufferPool.acquire(bodyBufferSize);
+            try {
+                int c;
+                while ((c = in.read(buffer, 0, buffer.length)) != -1) {
+                    cacheBuilder.write(buffer, 0, c);
+                    if (clientFailure.get() != null && (fetch == null || !fetch.hasFollowers())) {
+                        // nobody is left to read the rest of it
+                        break;
+                    }
+                }
+                if (c == -1) {
+                    cacheBuilder.finished();
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+        } finally {
+            // commits it if it's finished, which ends the client's copy
+            cacheBuilder.close();
+            clientFeed.join();
+        }
+        if (clientFailure.get() != null) {
+            throw clientFailure.get();
+        }
+    }
+
+    private static void passTrailers(InputStream in, OutputStream out) {
+        if (in instanceof ChunkedInputStream && out instanceof ChunkedOutputStream) {
+            ((ChunkedOutputStream) out).setTrailers(Trailers.sanitize(((ChunkedInputStream) in).getTrailers()));
         }
     }
 
@@ -829,193 +1746,90 @@ public class ProxyHandler {
     }
 
     private void return200(byte[] content, String type) throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 200 OK", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Content-Length", Integer.toString(content.length));
-        httpHeader.setHeader("Cache-Control", "private, max-age=0");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        clientOut.write(content);
+        sendSynthetic(head200, content, "Content-Type", type);
     }
 
     private void return301(String target) throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 301 Moved Permanently", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Transfer-Encoding", "chunked");
-        httpHeader.setHeader("Cache-Control", "private, max-age=0");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
-        httpHeader.setHeader("Location", target);
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-            out.write(("301 Permanently Moved: " + target).getBytes());
-        }
+        sendSynthetic(head301, ("301 Permanently Moved: " + target).getBytes(StandardCharsets.UTF_8), "Location", target);
     }
 
     private void return302(String target) throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 302 Found", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Transfer-Encoding", "chunked");
-        httpHeader.setHeader("Cache-Control", "private, max-age=0");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
-        httpHeader.setHeader("Location", target);
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-            out.write(("302 Found: " + target).getBytes());
-        }
+        sendSynthetic(head302, ("302 Found: " + target).getBytes(StandardCharsets.UTF_8), "Location", target);
     }
 
     private void return400() throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 400 Bad Request", new CaseInsensitiveHashMap<>());
-        if (settings != null) {
-            addHstsHeader(httpHeader);
-        }
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Transfer-Encoding", "chunked");
-        httpHeader.setHeader("Cache-Control", "private, max-age=0");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-            out.write("400 Bad Request".getBytes());
-        }
+        sendSynthetic(head400, body400);
     }
 
     private void return401BasicAuth(BasicAuth basicAuth) throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 401 Unauthorized", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Transfer-Encoding", "chunked");
-        httpHeader.setHeader("Cache-Control", "private, max-age=0");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
-        httpHeader.setHeader("WWW-Authenticate", "Basic realm=" + basicAuth.getRealm());
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-            out.write("401 Unauthorized".getBytes());
-        }
+        sendSynthetic(head401, body401, "WWW-Authenticate", "Basic realm=" + basicAuth.getRealm());
     }
 
     private void return404() throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 404 Not Found", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Transfer-Encoding", "chunked");
-        httpHeader.setHeader("Cache-Control", "private, max-age=0");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-            out.write("404 Not Found".getBytes());
-        }
+        sendSynthetic(head404, body404);
     }
 
     private void return500() throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 500 Internal Server Error", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Transfer-Encoding", "chunked");
-        httpHeader.setHeader("Cache-Control", "private, max-age=15");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
         keepAlive = false;
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-            out.write("500 Internal Server Error".getBytes());
-        }
+        sendSynthetic(head500, body500);
     }
 
     private void return502() throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 502 Bad Gateway", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Transfer-Encoding", "chunked");
-        httpHeader.setHeader("Cache-Control", "private, max-age=15");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-            out.write("502 Bad Gateway".getBytes());
-        }
+        sendSynthetic(head502, body502);
     }
 
     private void return503(String custom503) throws IOException {
-        File f = null;
         if (custom503 != null) {
-            f = new File(custom503);
-            if (!f.exists()) {
-                f = null;
-            }
-        }
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 503 Service Unavailable", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        if (f != null) {
-            httpHeader.setHeader("Content-Length", Long.toString(f.length()));
-        } else {
-            httpHeader.setHeader("Transfer-Encoding", "chunked");
-        }
-        httpHeader.setHeader("Cache-Control", "private, max-age=15");
-        httpHeader.setHeader("Content-Type", "text/" + (f == null ? "plain" : "html") + "; charset=UTF-8");
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        if (f != null) {
-            Util.copy(new FileInputStream(f), clientOut);
-        } else {
-            try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-                out.write("503 Service Unavailable".getBytes());
+            File f = new File(custom503);
+            if (f.exists()) {
+                sendSynthetic(head503Custom, Files.readAllBytes(f.toPath()));
+                return;
             }
         }
+        sendSynthetic(head503, body503);
     }
 
     private void youAreBanned(String ip) throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 403 Forbidden", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Transfer-Encoding", "chunked");
-        httpHeader.setHeader("Cache-Control", "private, max-age=120");
-        httpHeader.setHeader("Content-Type", "text/plain; charset=UTF-8");
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (ChunkedOutputStream out = new ChunkedOutputStream(clientOut)) {
-            out.write(("Your IP address (" + ip + ") is permanently banned from accessing this server.").getBytes());
-        }
+        sendSynthetic(head403, ("Your IP address (" + ip + ") is permanently banned from accessing this server.").getBytes(StandardCharsets.UTF_8));
     }
 
     private void rateLimit(String host, String path, String ip) throws IOException {
-        HttpHeader httpHeader = new HttpHeader("HTTP/1.1 429 Too Many Requests", new CaseInsensitiveHashMap<>());
-        addHstsHeader(httpHeader);
-        File f = proxyServer.get429File(host);
-        int length = (int) f.length();
-        httpHeader.setHeader("Server", "Siggi-SimpleHttpProxy");
-        httpHeader.setHeader("Cache-Control", "private, max-age=15");
-        httpHeader.setHeader("Content-Length", Integer.toString(length));
-        httpHeader.setHeader("Content-Type", "text/html; charset=UTF-8");
-        keepAliveHeaders(httpHeader);
-        Util.writeHeader(clientOut, httpHeader);
-        try (FileInputStream in = new FileInputStream(f)) {
-            byte[] b = new byte[4096];
-            int amountWritten = 0;
-            int c;
-            while (amountWritten < length) {
-                c = in.read(b, 0, Math.min(b.length, length - amountWritten));
-                if (c == -1) {
-                    break;
-                }
-                clientOut.write(b, 0, c);
-                amountWritten += c;
-            }
-            while (amountWritten < length) {
-                clientOut.write(0);
-                amountWritten += 1;
-            }
+        byte[] body;
+        try {
+            body = Files.readAllBytes(proxyServer.get429File(host).toPath());
         } catch (Exception e) {
+            body = new byte[0];
+        }
+        sendSynthetic(head429, body);
+    }
+
+    /**
+     * Send a response made up by the proxy, header and body in one write.
+     *
+     * @param head the status line and the headers that never change
+     * @param body the whole body
+     * @param extraHeaders more headers, as name and value pairs
+     */
+    private void sendSynthetic(byte[] head, byte[] body, String... extraHeaders) throws IOException {
+        HeaderWriter writer = new HeaderWriter().bytes(head);
+        String hsts = hstsValue();
+        if (hsts != null) {
+            writer.header("Strict-Transport-Security", hsts);
+        }
+        for (int i = 0; i + 1 < extraHeaders.length; i += 2) {
+            writer.header(extraHeaders[i], extraHeaders[i + 1]);
+        }
+        writer.header("Content-Length", Integer.toString(body.length));
+        writer.bytes(keepAlive ? keepAliveLines : closeLines);
+        writer.end().bytes(body).writeTo(clientOut);
+    }
+
+    private static byte[] syntheticHead(String status, String cacheControl, String contentType) {
+        if (contentType == null) {
+            return HeaderWriter.encode("HTTP/1.1 " + status, "Server: Siggi-SimpleHttpProxy", "Cache-Control: " + cacheControl);
         }
+        return HeaderWriter.encode("HTTP/1.1 " + status, "Server: Siggi-SimpleHttpProxy", "Cache-Control: " + cacheControl,
+                "Content-Type: " + contentType);
     }
 
     private void log(String msg) {
@@ -0,0 +1,191 @@
+package io.siggi.simplehttpproxy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup structure over the keys of a list of ForwardingSettings.
+ * <p>
+ * Exact hosts are found through a hash map, *.suffix hosts through a trie of
+ * host labels walked from the right, and within each host the path prefixes
+ * are kept in a character trie. Every key remembers its position in the
+ * original list so the result is the same as checking each key in order with
+ * {@link ForwardingSettings#match(String, String, int)}: the first matching key
+ * wins.
+ */
+final class RoutingIndex {
+
+    private final Map<String, PathNode> exactHosts = new HashMap<>();
+    private final LabelNode wildcardHosts = new LabelNode();
+    private final PathNode anyHost = new PathNode();
+
+    RoutingIndex(List<ForwardingSettings> settingsList) {
+        int order = 0;
+        for (ForwardingSettings settings : settingsList) {
+            for (int i = 0; i < settings.keyList.length; i++) {
+                Route route = new Route(settings, i, order++);
+                String host = settings.host[i];
+                PathNode paths;
+                if (host.equals("*")) {
+                    paths = anyHost;
+                } else if (host.startsWith("*.")) {
+                    // *.example.com matches anything ending in .example.com
+                    String[] labels = host.substring(2).split("\\.", -1);
+                    LabelNode node = wildcardHosts;
+                    for (int j = labels.length - 1; j >= 0; j--) {
+                        node = node.getOrCreateChild(labels[j]);
+                    }
+                    paths = node.getOrCreatePaths();
+                } else {
+                    paths = exactHosts.computeIfAbsent(host, h -> new PathNode());
+                }
+                paths.add(settings.path[i], route);
+            }
+        }
+    }
+
+    ForwardingSettingsMatch match(String host, String path, int port) {
+        Route best = anyHost.find(path, port, null);
+        PathNode exact = exactHosts.get(host);
+        if (exact != null) {
+            best = exact.find(path, port, best);
+        }
+        LabelNode node = wildcardHosts;
+        int end = host.length();
+        while (end > 0) {
+            int dot = host.lastIndexOf('.', end - 1);
+            if (dot == -1) {
+                // a wildcard needs a dot in front of the part it matched
+                break;
+            }
+            node = node.getChild(host, dot + 1, end);
+            if (node == null) {
+                break;
+            }
+            if (node.paths != null) {
+                best = node.paths.find(path, port, best);
+            }
+            end = dot;
+        }
+        return best == null ? null : best.match;
+    }
+
+    private static final class Route {
+
+        private final ForwardingSettingsMatch match;
+        private final int port;
+        private final int order;
+
+        private Route(ForwardingSettings settings, int index, int order) {
+            this.match = new ForwardingSettingsMatch(settings, index);
+            this.port = settings.port[index];
+            this.order = order;
+        }
+
+        private boolean matchesPort(int port) {
+            return this.port == 0 || this.port == port;
+        }
+    }
+
+    private static final class LabelNode {
+
+        private Map<String, LabelNode> children = null;
+        private PathNode paths = null;
+
+        private LabelNode getOrCreateChild(String label) {
+            if (children == null) {
+                children = new HashMap<>();
+            }
+            return children.computeIfAbsent(label, l -> new LabelNode());
+        }
+
+        private PathNode getOrCreatePaths() {
+            if (paths == null) {
+                paths = new PathNode();
+            }
+            return paths;
+        }
+
+        private LabelNode getChild(String host, int start, int end) {
+            if (children == null) {
+                return null;
+            }
+            return children.get(host.substring(start, end));
+        }
+    }
+
+    private static final class PathNode {
+
+        private static final char[] noKeys = new char[0];
+        private static final PathNode[] noNodes = new PathNode[0];
+        private static final Route[] noRoutes = new Route[0];
+        private char[] keys = noKeys;
+        private PathNode[] nodes = noNodes;
+        // in the order they appear in the hosts file
+        private Route[] routes = noRoutes;
+
+        private void add(String path, Route route) {
+            PathNode node = this;
+            for (int i = 0; i < path.length(); i++) {
+                node = node.getOrCreateChild(path.charAt(i));
+            }
+            node.routes = Arrays.copyOf(node.routes, node.routes.length + 1);
+            node.routes[node.routes.length - 1] = route;
+        }
+
+        private PathNode getOrCreateChild(char c) {
+            PathNode child = getChild(c);
+            if (child == null) {
+                child = new PathNode();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                nodes = Arrays.copyOf(nodes, nodes.length + 1);
+                keys[keys.length - 1] = c;
+                nodes[nodes.length - 1] = child;
+            }
+            return child;
+        }
+
+        private PathNode getChild(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return nodes[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Find the earliest route whose path is a prefix of the given path.
+         *
+         * @param path the requested path
+         * @param port the port the request came in on
+         * @param best the best route found so far, or null
+         * @return whichever of best and the route found here comes first
+         */
+        private Route find(String path, int port, Route best) {
+            PathNode node = this;
+            int i = 0;
+            while (true) {
+                for (Route route : node.routes) {
+                    if (best != null && route.order >= best.order) {
+                        break;
+                    }
+                    if (route.matchesPort(port)) {
+                        best = route;
+                        break;
+                    }
+                }
+                if (i >= path.length()) {
+                    break;
+                }
+                node = node.getChild(path.charAt(i++));
+                if (node == null) {
+                    break;
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.siggi.simplehttpproxy;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parsed contents of a hosts_PORT.txt file. A table is never modified
+ * after it has been built, a reload builds a new one and swaps it in.
+ */
+final class RoutingTable {
+
+    private static final long checkInterval = 1000L;
+    private final List<ForwardingSettings> settingsList;
+    private final RoutingIndex index;
+    private final FileToWatch fileToWatch;
+    private volatile long lastCheck;
+
+    RoutingTable(List<ForwardingSettings> settingsList, FileToWatch fileToWatch) {
+        this.settingsList = Collections.unmodifiableList(settingsList);
+        this.index = new RoutingIndex(this.settingsList);
+        this.fileToWatch = fileToWatch;
+        this.lastCheck = System.currentTimeMillis();
+    }
+
+    /**
+     * Check whether the file this table was built from has changed. The file
+     * is looked at no more than once a second.
+     *
+     * @param now the current time
+     * @return true if the table should be rebuilt
+     */
+    boolean hasChanged(long now) {
+        if (now - lastCheck < checkInterval) {
+            return false;
+        }
+        lastCheck = now;
+        return fileToWatch.hasChanged();
+    }
+
+    List<ForwardingSettings> getSettingsList() {
+        return settingsList;
+    }
+
+    ForwardingSettingsMatch match(String host, String path, int port) {
+        return index.match(host, path, port);
+    }
+}
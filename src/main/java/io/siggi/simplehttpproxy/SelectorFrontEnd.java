@@ -0,0 +1,212 @@
+package io.siggi.simplehttpproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop front end for a listener marked with the n prefix in ports.txt.
+ * <p>
+ * Accepted connections and keep-alive connections that are waiting for their
+ * next request are owned by a single selector thread instead of each holding
+ * a blocked thread. As soon as a connection becomes readable, it is switched
+ * back to blocking mode and handed to its {@link ProxyHandler}, which returns
+ * it to the selector once the request has been served and nothing else is
+ * buffered.
+ * <p>
+ * Only used on Java 13 and newer. Before that, a blocking socket that belongs
+ * to a channel can't be written while another thread is blocked reading it,
+ * so n ports get a thread per connection there.
+ */
+final class SelectorFrontEnd {
+
+    // we announce Keep-Alive timeout=60, but we'll wait up to 2 minutes
+    private static final long idleTimeout = 120000L;
+    // how long to stop accepting after accept() failed, e.g. because we ran out of file descriptors
+    private static final long acceptBackoff = 100L;
+    private final SimpleHttpProxy proxyServer;
+    private final boolean secure;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Queue<ProxyHandler> parkQueue = new ConcurrentLinkedQueue<>();
+    private SelectionKey acceptKey;
+    private long acceptPausedUntil = 0L;
+
+    SelectorFrontEnd(SimpleHttpProxy proxyServer, boolean secure, ServerSocketChannel serverChannel) throws IOException {
+        this.proxyServer = proxyServer;
+        this.secure = secure;
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hand an idle connection back to the selector. Must only be called by the
+     * thread currently serving the connection, and that thread must not touch
+     * the connection again afterwards.
+     *
+     * @param handler the handler whose connection is idle
+     */
+    void park(ProxyHandler handler) {
+        parkQueue.add(handler);
+        selector.wakeup();
+    }
+
+    void run() {
+        List<IdleConnection> ready = new ArrayList<>();
+        List<IdleConnection> expired = new ArrayList<>();
+        long lastSweep = System.currentTimeMillis();
+        try {
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            while (serverChannel.isOpen()) {
+                long timeout = 1000L;
+                if (acceptPausedUntil != 0L) {
+                    long wait = acceptPausedUntil - System.currentTimeMillis();
+                    if (wait <= 0L) {
+                        acceptPausedUntil = 0L;
+                        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    } else {
+                        timeout = Math.min(wait, timeout);
+                    }
+                }
+                selector.select(timeout);
+                ProxyHandler parked;
+                while ((parked = parkQueue.poll()) != null) {
+                    register(parked);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        key.cancel();
+                        ready.add((IdleConnection) key.attachment());
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000L) {
+                    lastSweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        Object attachment = key.attachment();
+                        if (!(attachment instanceof IdleConnection) || !key.isValid()) {
+                            continue;
+                        }
+                        IdleConnection idle = (IdleConnection) attachment;
+                        if (now - idle.since > idleTimeout) {
+                            key.cancel();
+                            expired.add(idle);
+                        }
+                    }
+                }
+                if (ready.isEmpty() && expired.isEmpty()) {
+                    continue;
+                }
+                // deregister the cancelled keys so the channels can go back to blocking mode
+                selector.selectNow();
+                for (IdleConnection idle : ready) {
+                    if (toBlocking(idle.handler)) {
+                        idle.handler.wake();
+                    }
+                }
+                for (IdleConnection idle : expired) {
+                    if (toBlocking(idle.handler)) {
+                        ThreadCreator.createThread(idle.handler::idleTimeout, null, false, true).start();
+                    }
+                }
+                ready.clear();
+                expired.clear();
+            }
+        } catch (Exception e) {
+            if (serverChannel.isOpen()) {
+                proxyServer.log(e);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (Exception e) {
+                }
+            }
+            try {
+                selector.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    /**
+     * Accept every pending connection. If accepting fails, the listener stops
+     * accepting for a moment instead of spinning on the error, connections
+     * that are already open are still served.
+     */
+    private void accept() {
+        SocketChannel channel;
+        while (true) {
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    proxyServer.log("Failed to accept a connection, pausing for " + acceptBackoff + "ms", e);
+                    acceptKey.interestOps(0);
+                    acceptPausedUntil = System.currentTimeMillis() + acceptBackoff;
+                }
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                register(new ProxyHandler(proxyServer, secure, channel.socket(), this));
+            } catch (Exception e) {
+                try {
+                    channel.close();
+                } catch (Exception e2) {
+                }
+            }
+        }
+    }
+
+    private void register(ProxyHandler handler) {
+        SocketChannel channel = handler.getRawSocket().getChannel();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new IdleConnection(handler));
+        } catch (Exception e) {
+            handler.close();
+        }
+    }
+
+    private boolean toBlocking(ProxyHandler handler) {
+        Socket socket = handler.getRawSocket();
+        try {
+            socket.getChannel().configureBlocking(true);
+            return true;
+        } catch (Exception e) {
+            handler.close();
+            return false;
+        }
+    }
+
+    private static final class IdleConnection {
+
+        private final ProxyHandler handler;
+        private final long since = System.currentTimeMillis();
+
+        private IdleConnection(ProxyHandler handler) {
+            this.handler = handler;
+        }
+    }
+}
@@ -4,11 +4,16 @@ import io.siggi.iphelper.IP;
 import io.siggi.iphelper.IPv6;
 import io.siggi.processapi.ProcessAPI;
 import io.siggi.simplehttpproxy.cache.CacheManager;
+import io.siggi.simplehttpproxy.cache.EvictionPolicy;
+import io.siggi.simplehttpproxy.io.BufferPool;
+import io.siggi.simplehttpproxy.io.ChunkedOutputStream;
 import io.siggi.simplehttpproxy.io.IOUtil;
 import io.siggi.simplehttpproxy.tls.KeyMaster;
 import io.siggi.simplehttpproxy.tls.TlsUtil;
 import io.siggi.simplehttpproxy.updater.AutoUpdater;
 import io.siggi.simplehttpproxy.util.Logger;
+import io.siggi.simplehttpproxy.util.Metrics;
+import io.siggi.simplehttpproxy.util.Options;
 import io.siggi.simplehttpproxy.util.TrustForward;
 import io.siggi.simplehttpproxy.util.Util;
 
@@ -28,6 +33,7 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
@@ -40,6 +46,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
@@ -51,6 +58,7 @@ public class SimpleHttpProxy {
     private final Pattern hstsPattern = Pattern.compile("\\(HSTS([IP]?)=([0-9]{1,})\\)");
     private final List<FileToWatch> filesToWatch = new LinkedList<>();
     private final Map<String, SSLInfo> sslInfo = new HashMap<>();
+    private final Map<Integer, RoutingTable> routingTables = new ConcurrentHashMap<>();
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     private final Lock readLock = lock.readLock();
     private final Lock writeLock = lock.writeLock();
@@ -73,6 +81,15 @@ public class SimpleHttpProxy {
             (byte) 2, // Error: fatal
             (byte) 40 // Error: handshake_failure
     };
+    private final byte[] internalError = new byte[]{
+            (byte) 21, // TLS Alert
+            (byte) 03, // Version Major
+            (byte) 01, // Version Minor
+            (byte) 0, // Size most significant
+            (byte) 2, // Size least significant
+            (byte) 2, // Error: fatal
+            (byte) 80 // Error: internal_error
+    };
     private final Set<IP> bannedIPs = new HashSet<>();
     private final ReentrantReadWriteLock banLock = new ReentrantReadWriteLock();
     private final Lock banReadLock = banLock.readLock();
@@ -84,6 +101,9 @@ public class SimpleHttpProxy {
     private boolean transparentProxy = false;
     private long lastLoadFactories = 0L;
     private RateLimitController rateLimitController;
+    private HandlerPool handlerPool;
+    private UpstreamPool upstreamPool;
+    private boolean http2;
 
     {
         try (BufferedReader reader = new BufferedReader(new FileReader("bannedips.txt"))) {
@@ -136,10 +156,21 @@ public class SimpleHttpProxy {
             Runtime.getRuntime().exec(new String[]{new File("setup-perms").getAbsolutePath()}).waitFor();
         } catch (Exception e) {
         }
+        Options.load(new File("options.txt"));
+        setupThreadCreator();
+        http2 = Options.getBoolean("http2", true);
+        ChunkedOutputStream.setDefaultChunkSize(Options.getInt("chunk.size", 16384));
+        handlerPool = new HandlerPool(Options.getInt("handlers.max", 4096), Options.getInt("handlers.queue", 1024));
+        upstreamPool = new UpstreamPool(Options.getInt("upstream.idle.max", 32), Options.getLong("upstream.idle.timeout", 30000L));
+        Metrics.gauge("buffers.allocated", BufferPool::getAllocated);
+        Metrics.start(new File("metrics.txt"), 10000L);
         rateLimitController = new RateLimitController(new File("ratelimitwhitelist.txt"));
         started = true;
         sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
         logger = new Logger(new File("log"));
+        if (Options.getBoolean("buffers.debug", false)) {
+            BufferPool.setLeakDetection(t -> log("Buffer pool misuse", t));
+        }
         List<Runnable> serverListenerRunnables = new LinkedList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(new File("ports.txt")))) {
             String line;
@@ -150,23 +181,50 @@ public class SimpleHttpProxy {
                 }
                 line = line.trim();
                 try {
-                    boolean secure;
-                    if (line.startsWith("s")) {
-                        secure = true;
+                    boolean secure = false;
+                    boolean useSelector = false;
+                    prefixes:
+                    while (!line.isEmpty()) {
+                        switch (line.charAt(0)) {
+                            case 's':
+                                secure = true;
+                                break;
+                            case 'n':
+                                // non-blocking selector front end instead of a thread per connection
+                                useSelector = true;
+                                break;
+                            default:
+                                break prefixes;
+                        }
                         line = line.substring(1);
-                    } else {
-                        secure = false;
                     }
-                    ServerSocket ss = new ServerSocket();
+                    int port = Integer.parseInt(line);
+                    if (useSelector && !Util.hasConcurrentChannelSockets()) {
+                        log("The n prefix needs Java 13 or newer, using a thread per connection on port " + port);
+                        useSelector = false;
+                    }
+                    if (useSelector) {
+                        ServerSocketChannel channel = ServerSocketChannel.open();
+                        ServerSocket ss = channel.socket();
+                        ss.setReuseAddress(true);
+                        ss.bind(new InetSocketAddress((InetAddress) null, port));
+                        serverSockets.add(ss);
+                        serverListenerRunnables.add(new SelectorFrontEnd(this, secure, channel)::run);
+                        continue;
+                    }
+                    boolean isSecure = secure;
+                    // opened through a channel so accepted sockets have one, for sendfile, unless
+                    // that would make reads and writes on them wait for each other
+                    ServerSocket ss = Util.hasConcurrentChannelSockets() ? ServerSocketChannel.open().socket() : new ServerSocket();
                     ss.setReuseAddress(true);
-                    ss.bind(new InetSocketAddress((InetAddress) null, Integer.parseInt(line)));
+                    ss.bind(new InetSocketAddress((InetAddress) null, port));
                     serverSockets.add(ss);
                     serverListenerRunnables.add(() -> {
                         try {
                             while (true) {
                                 Socket accept = ss.accept();
                                 try {
-                                    new ProxyHandler(this, secure, accept).start();
+                                    new ProxyHandler(this, isSecure, accept).start();
                                 } catch (Exception e) {
                                 }
                             }
@@ -203,8 +261,18 @@ public class SimpleHttpProxy {
         for (Runnable runnable : serverListenerRunnables) {
             ThreadCreator.createThread(runnable, null, false, false).start();
         }
-        cacheManager = new CacheManager(new File("cache"));
+        cacheManager = new CacheManager(new File("cache"), Options.getLong("cache.memory.size", 67108864L), Options.getInt("cache.memory.object.max", 1048576));
+        cacheManager.setCompress(Options.getBoolean("cache.compress", true));
+        cacheManager.setErrorLog(this::log);
         cacheManager.startCleanupThread();
+        EvictionPolicy evictionPolicy;
+        try {
+            evictionPolicy = EvictionPolicy.valueOf(Options.get("cache.eviction", "lru").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log("Unknown cache.eviction policy, using LRU");
+            evictionPolicy = EvictionPolicy.LRU;
+        }
+        cacheManager.startEvictor(Options.getLong("cache.max.size", 0L), Options.getInt("cache.max.entries", 0), evictionPolicy);
         if (System.getProperty("launcher", "0").equals("1")) {
             ThreadCreator.createThread(() -> {
                 try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
@@ -225,6 +293,22 @@ public class SimpleHttpProxy {
         }
     }
 
+    private void setupThreadCreator() {
+        String threads = Options.get("threads", "platform");
+        if (!threads.equalsIgnoreCase("virtual")) {
+            return;
+        }
+        try {
+            // only present in the jdk21 build
+            Class<?> creatorClass = Class.forName("io.siggi.simplehttpproxy.VirtualThreadCreator");
+            ThreadCreator.set((ThreadCreator) creatorClass.getConstructor(ThreadCreator.class).newInstance(ThreadCreator.get()));
+            // there can be far more virtual threads than it is worth keeping buffers for
+            BufferPool.setThreadLocalSlots(false);
+        } catch (Throwable t) {
+            System.err.println("Virtual threads require the jdk21 build of SimpleHttpProxy running on Java 21 or newer, using platform threads");
+        }
+    }
+
     private void closeAllServerSockets() {
         for (ServerSocket serverSocket : serverSockets) {
             try {
@@ -319,6 +403,29 @@ public class SimpleHttpProxy {
                                         currentSettings.allowCache = Util.parseBoolean(val);
                                     }
                                     break;
+                                    case "cacheslice": {
+                                        currentSettings.cacheSliceSize = Long.parseLong(val);
+                                    }
+                                    break;
+                                    case "compress": {
+                                        currentSettings.compress = Util.parseBoolean(val);
+                                    }
+                                    break;
+                                    case "compressminsize": {
+                                        currentSettings.compressMinSize = Long.parseLong(val);
+                                    }
+                                    break;
+                                    case "compresstypes": {
+                                        List<String> types = new ArrayList<>();
+                                        for (String type : val.split(",")) {
+                                            type = type.trim().toLowerCase();
+                                            if (!type.isEmpty()) {
+                                                types.add(type);
+                                            }
+                                        }
+                                        currentSettings.compressTypes = types;
+                                    }
+                                    break;
                                     case "redirect": {
                                         try {
                                             if (val.indexOf("/", val.indexOf("://") + 3) == -1) {
@@ -376,6 +483,14 @@ public class SimpleHttpProxy {
                                         }
                                     }
                                     break;
+                                    case "stalewhilerevalidate": {
+                                        currentSettings.staleWhileRevalidate = Long.parseLong(val);
+                                    }
+                                    break;
+                                    case "staleiferror": {
+                                        currentSettings.staleIfError = Long.parseLong(val);
+                                    }
+                                    break;
                                     case "hostheader": {
                                         currentSettings.hostHeader = val;
                                     }
@@ -413,14 +528,18 @@ public class SimpleHttpProxy {
             }
             host = host.substring(0, colonPos);
         }
-        List<ForwardingSettings> settingsList = getSettings(port);
-        for (ForwardingSettings settings : settingsList) {
-            ForwardingSettingsMatch match = settings.match(host, path, port);
-            if (match != null) {
-                return match;
-            }
+        return getRoutingTable(port).match(host, path, port);
+    }
+
+    private RoutingTable getRoutingTable(int port) {
+        RoutingTable table = routingTables.get(port);
+        if (table == null || table.hasChanged(System.currentTimeMillis())) {
+            // take the snapshot before parsing so a change made while we're parsing is picked up next time
+            FileToWatch fileToWatch = new FileToWatch(new File("hosts_" + port + ".txt"));
+            table = new RoutingTable(getSettings(port), fileToWatch);
+            routingTables.put(port, table);
         }
-        return null;
+        return table;
     }
 
     private ForwardingSettings parseForwardingSettings(String key, int port, String val) {
@@ -716,6 +835,9 @@ public class SimpleHttpProxy {
             SSLSocket sslSocket = (SSLSocket) info.factory.createSocket(socket, new ByteArrayInputStream(initialBytes), true);
             info.adjustProtocol(sslSocket);
             sslSocket.setUseClientMode(false);
+            if (http2) {
+                TlsUtil.setApplicationProtocols(sslSocket, "h2", "http/1.1");
+            }
             sslSocket.startHandshake();
             return new SSLUpgradeResult(sslSocket, initialBytes, info.injectXForwardedFor ? injectXForwardedFor : null);
         } else {
@@ -837,15 +959,35 @@ public class SimpleHttpProxy {
         return rateLimitController;
     }
 
+    HandlerPool getHandlerPool() {
+        return handlerPool;
+    }
+
+    UpstreamPool getUpstreamPool() {
+        return upstreamPool;
+    }
+
+    /**
+     * Get the TLS alert sent to clients on secure ports when we're too busy to
+     * accept their connection.
+     *
+     * @return a fatal internal_error TLS alert
+     */
+    byte[] getOverloadedAlert() {
+        return internalError;
+    }
+
     public static class SSLUpgradeResult {
 
         public final SSLSocket socket;
+        public final String applicationProtocol;
         public final String backend;
         public final byte[] initialBytes;
         public List<String> injectXForwardedFor;
 
         private SSLUpgradeResult(String backend, byte[] initialBytes, List<String> injectXForwardedFor) {
             this.socket = null;
+            this.applicationProtocol = null;
             this.backend = backend;
             this.initialBytes = initialBytes;
             this.injectXForwardedFor = injectXForwardedFor;
@@ -853,6 +995,7 @@ public class SimpleHttpProxy {
 
         private SSLUpgradeResult(SSLSocket socket, byte[] initialBytes, List<String> injectXForwardedFor) {
             this.socket = socket;
+            this.applicationProtocol = TlsUtil.getApplicationProtocol(socket);
             this.backend = null;
             this.initialBytes = initialBytes;
             this.injectXForwardedFor = injectXForwardedFor;
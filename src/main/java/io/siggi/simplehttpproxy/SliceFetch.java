@@ -0,0 +1,100 @@
+package io.siggi.simplehttpproxy;
+
+import io.siggi.simplehttpproxy.cache.CacheBuilder;
+import io.siggi.simplehttpproxy.cache.CacheManager;
+import io.siggi.simplehttpproxy.cache.CacheObject;
+import io.siggi.simplehttpproxy.cache.InFlightFetch;
+import io.siggi.simplehttpproxy.io.BufferPool;
+import io.siggi.simplehttpproxy.util.HttpHeader;
+import io.siggi.simplehttpproxy.util.Util;
+
+/**
+ * Fetches one slice of a large response with a range request and caches it.
+ * It runs on its own thread so the slice is cached completely even if the
+ * client that asked for it goes away; clients read it through the fetch as it
+ * arrives.
+ */
+final class SliceFetch implements Runnable {
+
+    private final UpstreamPool upstreamPool;
+    private final CacheManager cacheManager;
+    private final String backend;
+    private final String sliceIdentifier;
+    private final HttpHeader requestHeader;
+    private final long sliceStart;
+    private final InFlightFetch fetch;
+
+    /**
+     * @param requestHeader the client's request as it would be sent to the
+     * backend, copied since the caller keeps using it
+     * @param firstSlice the first slice of the response, or null if this is
+     * the first slice; later slices are only cached if the response hasn't
+     * changed since
+     * @param fetch the fetch of this slice, abandoned if it can't be cached
+     */
+    SliceFetch(UpstreamPool upstreamPool, CacheManager cacheManager, String backend, String sliceIdentifier,
+            HttpHeader requestHeader, long sliceStart, long sliceSize, CacheObject firstSlice, InFlightFetch fetch) {
+        this.upstreamPool = upstreamPool;
+        this.cacheManager = cacheManager;
+        this.backend = backend;
+        this.sliceIdentifier = sliceIdentifier;
+        this.sliceStart = sliceStart;
+        this.fetch = fetch;
+        this.requestHeader = requestHeader.copy();
+        this.requestHeader.deleteHeader("If-None-Match");
+        this.requestHeader.deleteHeader("If-Modified-Since");
+        this.requestHeader.deleteHeader("If-Range");
+        this.requestHeader.setHeader("Range", "bytes=" + sliceStart + "-" + (sliceStart + sliceSize - 1L));
+        if (firstSlice != null) {
+            // a full 200 instead of a 206 if it changed, which won't be cached
+            HttpHeader firstHeader = firstSlice.getResponseHeader();
+            String etag = firstHeader.getHeader("ETag");
+            String lastModified = firstHeader.getHeader("Last-Modified");
+            if (etag != null && !etag.startsWith("W/")) {
+                this.requestHeader.setHeader("If-Range", etag);
+            } else if (lastModified != null) {
+                this.requestHeader.setHeader("If-Range", lastModified);
+            }
+        }
+    }
+
+    void start() {
+        ThreadCreator.createThread(this, "SliceFetch", true, false).start();
+    }
+
+    @Override
+    public void run() {
+        UpstreamConnection upstream = null;
+        boolean reusable = false;
+        CacheBuilder cacheBuilder = null;
+        try {
+            upstream = upstreamPool.send(backend, requestHeader);
+            HttpHeader responseHeader = upstream.readHeader();
+            if (responseHeader == null) {
+                return;
+            }
+            cacheBuilder = cacheManager.createSliceCache(sliceIdentifier, requestHeader, responseHeader, sliceStart, fetch);
+            if (cacheBuilder == null) {
+                // most likely the whole response, don't read it just to throw it away
+                return;
+            }
+            reusable = upstream.keepAlive(responseHeader);
+            Util.copy(responseHeader.wrapInputStream(upstream.in), cacheBuilder, BufferPool.MEDIUM, null);
+            cacheBuilder.finished();
+        } catch (Exception e) {
+            reusable = false;
+        } finally {
+            if (cacheBuilder != null) {
+                cacheBuilder.close();
+            }
+            fetch.abandon();
+            if (upstream != null) {
+                if (reusable) {
+                    upstreamPool.release(upstream);
+                } else {
+                    upstream.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.siggi.simplehttpproxy;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks trailer fields before they're passed on. Trailers arrive after the
+ * body, so fields that frame the message, route it or describe its content
+ * can't take effect anymore and are dropped, as are fields that aren't well
+ * formed.
+ */
+final class Trailers {
+
+    private Trailers() {
+    }
+
+    /**
+     * @param name a field name, in lowercase
+     * @return whether the field may be sent as a trailer
+     */
+    static boolean isAllowed(String name) {
+        switch (name) {
+            case "content-length":
+            case "transfer-encoding":
+            case "host":
+            case "connection":
+            case "keep-alive":
+            case "proxy-connection":
+            case "upgrade":
+            case "te":
+            case "trailer":
+            case "content-encoding":
+            case "content-type":
+            case "content-range":
+            case "expect":
+            case "max-forwards":
+            case "cache-control":
+            case "authorization":
+            case "proxy-authorization":
+            case "cookie":
+            case "set-cookie":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Parse a trailer section as received after the last chunk, and write the
+     * fields that are well formed and allowed back out.
+     *
+     * @param raw the trailer lines, each with its line end
+     * @return the fields that are left, each line ending in CRLF, or null if
+     * there are none
+     */
+    static byte[] sanitize(byte[] raw) {
+        if (raw == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : new String(raw, StandardCharsets.ISO_8859_1).split("\n")) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            // also rejects obsolete line folding, which starts with whitespace
+            int colon = line.indexOf(':');
+            if (colon <= 0 || !isToken(line, colon)) {
+                continue;
+            }
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1).trim();
+            if (!isAllowed(name.toLowerCase()) || !isValidValue(value)) {
+                continue;
+            }
+            sb.append(name).append(": ").append(value).append("\r\n");
+        }
+        return sb.length() == 0 ? null : sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isToken(String s, int end) {
+        for (int i = 0; i < end; i++) {
+            char c = s.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || "!#$%&'*+-.^_`|~".indexOf(c) >= 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // no control characters other than tab
+    private static boolean isValidValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < 0x20 && c != '\t') || c == 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
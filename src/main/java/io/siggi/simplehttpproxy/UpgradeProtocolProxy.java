@@ -1,17 +1,21 @@
 package io.siggi.simplehttpproxy;
 
+import io.siggi.simplehttpproxy.io.BufferPool;
+import io.siggi.simplehttpproxy.util.Options;
 import io.siggi.simplehttpproxy.util.Util;
 
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UpgradeProtocolProxy {
 
-    private static int nextId = 0;
+    private static final AtomicInteger nextId = new AtomicInteger();
     private final Socket s1;
     private final Socket s2;
     private final int id;
+    private final int bufferSize = Options.getInt("buffer.tunnel", BufferPool.MEDIUM);
     private boolean started;
 
     public UpgradeProtocolProxy(Socket s1, Socket s2) {
@@ -20,8 +24,8 @@ public class UpgradeProtocolProxy {
         this.id = id();
     }
 
-    private static synchronized int id() {
-        return nextId++;
+    private static int id() {
+        return nextId.getAndIncrement();
     }
 
     public void start() {
@@ -45,7 +49,7 @@ public class UpgradeProtocolProxy {
         try {
             InputStream inputStream = a.getInputStream();
             OutputStream outputStream = b.getOutputStream();
-            Util.copy(inputStream, outputStream);
+            Util.copy(inputStream, outputStream, bufferSize, null);
         } catch (Exception e) {
         } finally {
             try {
@@ -0,0 +1,125 @@
+package io.siggi.simplehttpproxy;
+
+import io.siggi.simplehttpproxy.io.SecureBufferedInputStream;
+import io.siggi.simplehttpproxy.io.SometimesTimeoutInputStream;
+import io.siggi.simplehttpproxy.util.HeaderParser;
+import io.siggi.simplehttpproxy.util.HttpHeader;
+import io.siggi.simplehttpproxy.util.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection to a backend server, along with what the backend told us about
+ * how long and for how many requests we may keep using it.
+ */
+final class UpstreamConnection {
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+    private static final int readTimeout = 300000;
+    final String backend;
+    final int id;
+    final Socket socket;
+    final SometimesTimeoutInputStream timeoutIn;
+    final SecureBufferedInputStream in;
+    final OutputStream out;
+    private final HeaderParser headerParser = new HeaderParser();
+    int requestsForwarded = 0;
+    int maxRequests = 1; // until the backend announces Keep-Alive
+    long expiry = Long.MAX_VALUE; // from the backend's Keep-Alive timeout
+    long idleSince = 0L;
+
+    UpstreamConnection(String backend) throws IOException {
+        this.backend = backend;
+        this.socket = Util.connect(backend);
+        try {
+            socket.setSoTimeout(readTimeout);
+            this.timeoutIn = new SometimesTimeoutInputStream(socket.getInputStream());
+            this.in = new SecureBufferedInputStream(timeoutIn, 16384);
+            this.out = socket.getOutputStream();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        this.id = nextId.incrementAndGet();
+    }
+
+    /**
+     * Check whether the backend may still accept a request on this connection.
+     * A connection that has been idle for a while is probed with a very short
+     * read, which is how we notice the backend has closed it in the meantime.
+     *
+     * @param now the current time
+     * @param probeAfter how long a connection may be idle before it is probed
+     * @return true if the connection looks usable
+     */
+    boolean isUsable(long now, long probeAfter) {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        if (requestsForwarded >= maxRequests || now >= expiry) {
+            return false;
+        }
+        try {
+            if (in.available() > 0) {
+                // nothing should arrive between responses
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        if (now - idleSince < probeAfter) {
+            return true;
+        }
+        try {
+            socket.setSoTimeout(1);
+            // either end of stream or data we did not ask for
+            socket.getInputStream().read();
+            return false;
+        } catch (SocketTimeoutException e) {
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                socket.setSoTimeout(readTimeout);
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Read the header of the next response.
+     *
+     * @return the header, or null if the backend closed the connection
+     */
+    HttpHeader readHeader() throws IOException {
+        return headerParser.read(in, 65536);
+    }
+
+    /**
+     * Check whether a response allows this connection to be reused.
+     *
+     * @return true if the response said Keep-Alive
+     */
+    boolean keepAlive(HttpHeader responseHeader) {
+        String connection = responseHeader.getHeader("Connection");
+        if (connection == null || !connection.equalsIgnoreCase("Keep-Alive")) {
+            return false;
+        }
+        if (maxRequests == 1) {
+            maxRequests = Integer.MAX_VALUE;
+        }
+        return true;
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (Exception e) {
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package io.siggi.simplehttpproxy;
+
+import io.siggi.simplehttpproxy.util.HttpHeader;
+import io.siggi.simplehttpproxy.util.Metrics;
+import io.siggi.simplehttpproxy.util.Util;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Idle keep-alive connections to backend servers, shared by all client
+ * connections so a new client doesn't have to pay for a new TCP (and maybe
+ * TLS) handshake with the backend.
+ * <p>
+ * Connections are handed out most recently used first, so under light load
+ * a few connections stay warm and the rest time out.
+ */
+final class UpstreamPool {
+
+    // connections idle for longer than this are probed before being handed out
+    private static final long probeAfter = 1000L;
+    private final int maxIdlePerBackend;
+    private final long idleTimeout;
+    // not a monitor, so a virtual thread waiting for it doesn't pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Deque<UpstreamConnection>> idleConnections = new HashMap<>();
+    private int idleCount = 0;
+    private final Metrics.Counter connects = Metrics.counter("upstream.connects");
+    private final Metrics.Counter reused = Metrics.counter("upstream.reused");
+    private final Metrics.Counter discarded = Metrics.counter("upstream.discarded");
+
+    UpstreamPool(int maxIdlePerBackend, long idleTimeout) {
+        this.maxIdlePerBackend = maxIdlePerBackend;
+        this.idleTimeout = idleTimeout;
+        Metrics.gauge("upstream.idle", () -> {
+            lock.lock();
+            try {
+                return idleCount;
+            } finally {
+                lock.unlock();
+            }
+        });
+        ThreadCreator.createThread(this::sweep, "UpstreamPool", true, false).start();
+    }
+
+    /**
+     * Take an idle connection to a backend out of the pool.
+     *
+     * @param backend the backend, as written in the hosts file
+     * @return a connection that passed the liveness check, or null if there is
+     * none
+     */
+    UpstreamConnection checkout(String backend) {
+        while (true) {
+            UpstreamConnection connection;
+            lock.lock();
+            try {
+                Deque<UpstreamConnection> deque = idleConnections.get(backend);
+                if (deque == null || deque.isEmpty()) {
+                    return null;
+                }
+                connection = deque.pollFirst();
+                idleCount -= 1;
+            } finally {
+                lock.unlock();
+            }
+            long now = System.currentTimeMillis();
+            if (now - connection.idleSince < idleTimeout && connection.isUsable(now, probeAfter)) {
+                reused.increment();
+                return connection;
+            }
+            discarded.increment();
+            connection.close();
+        }
+    }
+
+    UpstreamConnection connect(String backend) throws IOException {
+        UpstreamConnection connection = new UpstreamConnection(backend);
+        connects.increment();
+        return connection;
+    }
+
+    /**
+     * Send a request without a body, on an idle connection if there is one.
+     * For requests the proxy makes on its own rather than for a client.
+     *
+     * @param backend the backend, as written in the hosts file
+     * @param requestHeader the request
+     * @return the connection the response will arrive on
+     */
+    UpstreamConnection send(String backend, HttpHeader requestHeader) throws IOException {
+        UpstreamConnection connection = checkout(backend);
+        if (connection != null) {
+            try {
+                Util.writeHeader(connection.out, requestHeader);
+            } catch (IOException e) {
+                connection.close();
+                connection = null;
+            }
+        }
+        if (connection == null) {
+            connection = connect(backend);
+            try {
+                Util.writeHeader(connection.out, requestHeader);
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+        connection.requestsForwarded += 1;
+        return connection;
+    }
+
+    /**
+     * Return a connection whose last response has been read completely. The
+     * connection is closed instead if the backend won't take any more
+     * requests on it or the pool for its backend is full.
+     *
+     * @param connection the connection to return
+     */
+    void release(UpstreamConnection connection) {
+        long now = System.currentTimeMillis();
+        if (connection.requestsForwarded >= connection.maxRequests || now >= connection.expiry
+                || maxIdlePerBackend <= 0 || connection.socket.isClosed()) {
+            connection.close();
+            return;
+        }
+        connection.idleSince = now;
+        connection.timeoutIn.setThrowTimeoutException(false);
+        UpstreamConnection evicted = null;
+        lock.lock();
+        try {
+            Deque<UpstreamConnection> deque = idleConnections.computeIfAbsent(connection.backend, b -> new ArrayDeque<>());
+            deque.addFirst(connection);
+            idleCount += 1;
+            if (deque.size() > maxIdlePerBackend) {
+                evicted = deque.pollLast();
+                idleCount -= 1;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            discarded.increment();
+            evicted.close();
+        }
+    }
+
+    private void sweep() {
+        List<UpstreamConnection> expired = new ArrayList<>();
+        while (true) {
+            try {
+                Thread.sleep(Math.max(100L, Math.min(idleTimeout, 5000L)));
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.currentTimeMillis();
+            lock.lock();
+            try {
+                Iterator<Deque<UpstreamConnection>> it = idleConnections.values().iterator();
+                while (it.hasNext()) {
+                    Deque<UpstreamConnection> deque = it.next();
+                    // oldest at the end
+                    UpstreamConnection connection;
+                    while ((connection = deque.peekLast()) != null
+                            && (now - connection.idleSince >= idleTimeout || now >= connection.expiry)) {
+                        expired.add(deque.pollLast());
+                        idleCount -= 1;
+                    }
+                    if (deque.isEmpty()) {
+                        it.remove();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (UpstreamConnection connection : expired) {
+                discarded.increment();
+                connection.close();
+            }
+            expired.clear();
+        }
+    }
+}
@@ -4,29 +4,74 @@ import io.siggi.simplehttpproxy.util.HttpHeader;
 import io.siggi.simplehttpproxy.util.Util;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class CacheBuilder extends OutputStream {
 
+    // how long a follower waits for more of the body before giving up
+    private static final long followerTimeout = 120000L;
     private final File destinationDir;
     private final File tmpFile;
-    private final OutputStream out;
+    private final FileOutputStream out;
     private final UUID uuid;
-    private boolean closed = false;
+    private final Consumer<File> onCommit;
+    private final HttpHeader requestHeader;
+    private final HttpHeader responseHeader;
+    private final long date;
+    private final long bodyOffset;
+    private final GZIPOutputStream gzip; // null if the body is stored as it is
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    private long bodyWritten = 0L; // guarded by lock
+    private File committedFile = null; // guarded by lock
+    private InFlightFetch fetch = null;
+    private volatile boolean closed = false;
     private boolean finished = false;
 
-    CacheBuilder(File destinationDir, File tmpDir, HttpHeader requestHeader, HttpHeader responseHeader) throws IOException {
+    CacheBuilder(File destinationDir, File tmpDir, HttpHeader requestHeader, HttpHeader responseHeader, Consumer<File> onCommit) throws IOException {
+        this(destinationDir, tmpDir, requestHeader, responseHeader, false, onCommit);
+    }
+
+    /**
+     * @param compress store the body gzipped; it's written to the builder as
+     * it was received
+     */
+    CacheBuilder(File destinationDir, File tmpDir, HttpHeader requestHeader, HttpHeader responseHeader, boolean compress, Consumer<File> onCommit) throws IOException {
         this.destinationDir = destinationDir;
+        this.onCommit = onCommit;
+        // the caller keeps changing its copy while it forwards the response
+        this.requestHeader = requestHeader.copy();
+        this.responseHeader = responseHeader.copy();
+        if (compress) {
+            String contentLength = this.responseHeader.getHeader("Content-Length");
+            this.responseHeader.deleteHeader("Content-Length");
+            this.responseHeader.setHeader("Content-Encoding", "gzip");
+            this.responseHeader.setHeader(CacheObject.compressedHeader, contentLength == null ? "-1" : contentLength);
+        }
         tmpDir.mkdirs();
         this.tmpFile = new File(tmpDir, (uuid = UUID.randomUUID()) + ".dat");
         this.out = new FileOutputStream(tmpFile);
-        out.write((System.currentTimeMillis() + "\r\n").getBytes(StandardCharsets.UTF_8));
-        Util.writeHeader(out, requestHeader);
-        Util.writeHeader(out, responseHeader);
+        this.date = System.currentTimeMillis();
+        out.write((date + "\r\n").getBytes(StandardCharsets.UTF_8));
+        Util.writeHeader(out, this.requestHeader);
+        Util.writeHeader(out, this.responseHeader);
+        this.bodyOffset = out.getChannel().position();
+        this.gzip = compress ? new GZIPOutputStream(new BodySink(), 65536) : null;
     }
 
     @Override
@@ -34,36 +79,52 @@ public class CacheBuilder extends OutputStream {
         if (closed) {
             return;
         }
-        closed = true;
+        File destination = null;
+        lock.lock();
         try {
-            out.close();
-        } catch (Exception e) {
+            closed = true;
+            if (gzip != null) {
+                // frees the deflater, the trailer is already written if it finished
+                try {
+                    gzip.close();
+                } catch (Exception e) {
+                }
+            }
+            try {
+                out.close();
+            } catch (Exception e) {
+            }
+            if (!finished) {
+                tmpFile.delete();
+            } else if (tmpFile.exists()) {
+                destinationDir.mkdirs();
+                destination = new File(destinationDir, uuid.toString() + ".dat");
+                if (tmpFile.renameTo(destination)) {
+                    committedFile = destination;
+                } else {
+                    destination = null;
+                }
+            }
+            progress.signalAll();
+        } finally {
+            lock.unlock();
         }
-        if (!finished) {
-            tmpFile.delete();
-            return;
+        if (destination != null) {
+            onCommit.accept(destination);
         }
-        if (!tmpFile.exists()) {
-            return;
+        if (fetch != null) {
+            fetch.finished();
         }
-        destinationDir.mkdirs();
-        tmpFile.renameTo(new File(destinationDir, uuid.toString() + ".dat"));
     }
 
     @Override
     public void write(int b) throws IOException {
-        if (closed) {
-            return;
-        }
-        this.out.write(b);
+        write(new byte[]{(byte) b}, 0, 1);
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        if (closed) {
-            return;
-        }
-        this.out.write(b);
+        write(b, 0, b.length);
     }
 
     @Override
@@ -71,7 +132,22 @@ public class CacheBuilder extends OutputStream {
         if (closed) {
             return;
         }
+        if (gzip != null) {
+            gzip.write(b, o, l);
+        } else {
+            writeBody(b, o, l);
+        }
+    }
+
+    private void writeBody(byte[] b, int o, int l) throws IOException {
         this.out.write(b, o, l);
+        lock.lock();
+        try {
+            bodyWritten += l;
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -83,6 +159,147 @@ public class CacheBuilder extends OutputStream {
     }
 
     public void finished() {
+        if (gzip != null) {
+            try {
+                gzip.finish();
+            } catch (IOException e) {
+                return;
+            }
+        }
         finished = true;
     }
+
+    void setFetch(InFlightFetch fetch) {
+        this.fetch = fetch;
+    }
+
+    HttpHeader getRequestHeader() {
+        return requestHeader;
+    }
+
+    HttpHeader getResponseHeader() {
+        return responseHeader;
+    }
+
+    long getDate() {
+        return date;
+    }
+
+    long getBodyOffset() {
+        return bodyOffset;
+    }
+
+    /**
+     * Read the body while it's still being written. The stream blocks until
+     * more of it arrives, ends once the builder has finished, and throws if
+     * the builder is abandoned before that.
+     */
+    InputStream openFollower() throws IOException {
+        lock.lock();
+        try {
+            if (committedFile != null) {
+                return new FollowerInputStream(new RandomAccessFile(committedFile, "r"));
+            }
+            if (closed) {
+                throw new FileNotFoundException("Cache fill abandoned");
+            }
+            // still open after the rename, if that happens while we read
+            return new FollowerInputStream(new RandomAccessFile(tmpFile, "r"));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read the body back while it's still being written, as it was written to
+     * the builder rather than as it's stored. Ends once the builder has been
+     * finished and closed.
+     */
+    public InputStream openReader() throws IOException {
+        InputStream in = openFollower();
+        return gzip == null ? in : new GZIPInputStream(in, 65536);
+    }
+
+    /**
+     * Where the compressor writes to.
+     */
+    private final class BodySink extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            writeBody(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int o, int l) throws IOException {
+            writeBody(b, o, l);
+        }
+    }
+
+    private final class FollowerInputStream extends InputStream {
+
+        private final RandomAccessFile raf;
+        private long position = 0L;
+
+        private FollowerInputStream(RandomAccessFile raf) throws IOException {
+            this.raf = raf;
+            raf.seek(bodyOffset);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int amount = read(b, 0, 1);
+            return amount == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int o, int l) throws IOException {
+            if (l == 0) {
+                return 0;
+            }
+            long available;
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(followerTimeout);
+                while ((available = bodyWritten - position) <= 0L) {
+                    if (closed) {
+                        if (committedFile != null) {
+                            return -1;
+                        }
+                        throw new IOException("Cache fill abandoned");
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        throw new SocketTimeoutException("Cache fill stalled");
+                    }
+                    progress.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+            int amount = raf.read(b, o, (int) Math.min(l, available));
+            if (amount > 0) {
+                position += amount;
+            }
+            return amount;
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0L, bodyWritten - position));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
 }
@@ -0,0 +1,577 @@
+package io.siggi.simplehttpproxy.cache;
+
+import io.siggi.simplehttpproxy.util.Hash;
+import io.siggi.simplehttpproxy.util.HttpHeader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * What's in the cache, so lookups and cleanup don't have to list directories
+ * and parse every variant.
+ * <p>
+ * The index lives in memory and is persisted as an append-only log of added
+ * and removed variants in cache/index.log, one tab separated record per line.
+ * The log is compacted in the background once most of it is removals, or after
+ * writing to it failed. On startup the log is replayed and then checked
+ * against the .dat files, so variants whose records never made it into the log
+ * are indexed again and records of files that are gone are dropped.
+ * <p>
+ * Hits are tracked per variant to decide what to evict. Eviction samples a
+ * few random variants and picks the one with the lowest priority, so it never
+ * has to sort or walk the whole index. Access counts aren't persisted, after
+ * a restart every variant starts over as if it was last used when it was
+ * cached.
+ */
+final class CacheIndex {
+
+    private final File dataRoot;
+    private final File logFile;
+    // guards the index in memory, never held while doing file I/O
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, List<Entry>> entries = new HashMap<>();
+    private int entryCount = 0;
+    private long totalSize = 0L;
+    // every entry, in no particular order, for picking random eviction candidates
+    private final List<Entry> sample = new ArrayList<>();
+    private final Random random = new Random();
+    private EvictionPolicy policy = EvictionPolicy.LRU;
+    private double inflation = 0.0;
+    // guards the log, taken while still holding lock so records are written in
+    // the order the changes were made
+    private final ReentrantLock logLock = new ReentrantLock();
+    private OutputStream log;
+    private int logRecords = 0;
+    // set when the log no longer matches the index and has to be rewritten
+    private boolean logDirty = false;
+    // records appended while a compaction is writing, null if there is none
+    private List<String> appendedDuringCompaction = null;
+    private volatile BiConsumer<String, Throwable> errorLog = null;
+
+    CacheIndex(File root) {
+        this.dataRoot = new File(root, "data");
+        this.logFile = new File(root, "index.log");
+        if (logFile.exists()) {
+            replay();
+        }
+        reconcile();
+        compact();
+    }
+
+    /**
+     * Set where to report failures to write the log.
+     */
+    void setErrorLog(BiConsumer<String, Throwable> errorLog) {
+        this.errorLog = errorLog;
+    }
+
+    List<Entry> get(String cacheHash) {
+        lock.lock();
+        try {
+            List<Entry> list = entries.get(cacheHash);
+            return list == null ? Collections.emptyList() : new ArrayList<>(list);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void add(Entry entry) {
+        String record;
+        lock.lock();
+        try {
+            addEntry(entry);
+            record = "+\t" + entry;
+            logLock.lock();
+        } finally {
+            lock.unlock();
+        }
+        writeLog(record);
+    }
+
+    /**
+     * Forget a variant and delete its file.
+     */
+    void remove(Entry entry) {
+        boolean dirEmpty;
+        String record;
+        lock.lock();
+        try {
+            if (!removeEntry(entry)) {
+                return;
+            }
+            dirEmpty = !entries.containsKey(entry.cacheHash);
+            record = "-\t" + entry.cacheHash + "\t" + entry.id;
+            logLock.lock();
+        } finally {
+            lock.unlock();
+        }
+        writeLog(record);
+        File file = entry.getFile(dataRoot);
+        file.delete();
+        if (dirEmpty) {
+            // only succeeds if nothing else is in there
+            file.getParentFile().delete();
+        }
+    }
+
+    /**
+     * Give a variant a new date and expiry after the backend said it hasn't
+     * changed.
+     */
+    void refresh(Entry entry, long date, long expires) {
+        String record;
+        lock.lock();
+        try {
+            if (entry.sampleIndex < 0) {
+                // evicted in the meantime
+                return;
+            }
+            entry.date = date;
+            entry.expires = expires;
+            record = "+\t" + entry;
+            logLock.lock();
+        } finally {
+            lock.unlock();
+        }
+        writeLog(record);
+    }
+
+    /**
+     * Record a hit on a variant.
+     */
+    void touch(Entry entry) {
+        lock.lock();
+        try {
+            entry.lastAccess = System.currentTimeMillis();
+            entry.accessCount += 1;
+            entry.priority = policy.priority(entry, inflation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setPolicy(EvictionPolicy policy) {
+        lock.lock();
+        try {
+            this.policy = policy;
+            for (Entry entry : sample) {
+                entry.priority = policy.priority(entry, inflation);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Pick the next variant to evict, out of a few random ones.
+     *
+     * @return the variant, or null if the index is empty
+     */
+    Entry pickVictim() {
+        lock.lock();
+        try {
+            if (sample.isEmpty()) {
+                return null;
+            }
+            Entry victim = null;
+            for (int i = Math.min(16, sample.size()); i > 0; i--) {
+                Entry candidate = sample.get(random.nextInt(sample.size()));
+                if (victim == null || candidate.priority < victim.priority) {
+                    victim = candidate;
+                }
+            }
+            if (policy == EvictionPolicy.GDSF) {
+                inflation = victim.priority;
+            }
+            return victim;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return every variant in the index
+     */
+    List<Entry> all() {
+        lock.lock();
+        try {
+            return new ArrayList<>(sample);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getEntryCount() {
+        lock.lock();
+        try {
+            return entryCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getTotalSize() {
+        lock.lock();
+        try {
+            return totalSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    File getFile(Entry entry) {
+        return entry.getFile(dataRoot);
+    }
+
+    /**
+     * Compact the log if most of it is removals, or rewrite it if writing to it
+     * failed. Meant to be called now and then from a background thread.
+     */
+    void compactIfNeeded() {
+        int count = getEntryCount();
+        logLock.lock();
+        try {
+            if (!logDirty && (logRecords <= 1024 || logRecords <= count * 2)) {
+                return;
+            }
+        } finally {
+            logLock.unlock();
+        }
+        compact();
+    }
+
+    private void addEntry(Entry entry) {
+        entries.computeIfAbsent(entry.cacheHash, k -> new ArrayList<>(1)).add(entry);
+        entryCount += 1;
+        totalSize += entry.offset + entry.contentLength;
+        entry.sampleIndex = sample.size();
+        sample.add(entry);
+        entry.priority = policy.priority(entry, inflation);
+    }
+
+    private boolean removeEntry(Entry entry) {
+        List<Entry> list = entries.get(entry.cacheHash);
+        if (list == null || !list.remove(entry)) {
+            return false;
+        }
+        if (list.isEmpty()) {
+            entries.remove(entry.cacheHash);
+        }
+        entryCount -= 1;
+        totalSize -= entry.offset + entry.contentLength;
+        Entry last = sample.remove(sample.size() - 1);
+        if (last != entry) {
+            sample.set(entry.sampleIndex, last);
+            last.sampleIndex = entry.sampleIndex;
+        }
+        entry.sampleIndex = -1;
+        return true;
+    }
+
+    private void replay() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8))) {
+            Map<String, Entry> byId = new HashMap<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                try {
+                    if (parts[0].equals("+")) {
+                        Entry entry = Entry.parse(parts);
+                        Entry old = byId.put(entry.id, entry);
+                        if (old != null) {
+                            // refreshed after revalidation
+                            removeEntry(old);
+                        }
+                        addEntry(entry);
+                    } else if (parts[0].equals("-") && parts.length >= 3) {
+                        Entry entry = byId.remove(parts[2]);
+                        if (entry != null) {
+                            removeEntry(entry);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // a record cut short by a crash, or not a record at all
+                }
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Make the index match the .dat files. Files the log doesn't know about,
+     * because the process died or the log couldn't be written before their
+     * record went in, are indexed, and entries whose file is gone are dropped.
+     * Only called from the constructor, before anything else can use the
+     * index.
+     */
+    private void reconcile() {
+        Map<String, Entry> unseen = new HashMap<>();
+        for (Entry entry : sample) {
+            unseen.put(entry.id, entry);
+        }
+        reconcile(dataRoot, unseen);
+        for (Entry entry : unseen.values()) {
+            removeEntry(entry);
+        }
+    }
+
+    private void reconcile(File f, Map<String, Entry> unseen) {
+        File[] files = f.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                reconcile(file, unseen);
+                continue;
+            }
+            String name = file.getName();
+            if (name.endsWith(".dat")) {
+                Entry known = unseen.get(name.substring(0, name.length() - 4));
+                if (known != null && known.cacheHash.equals(f.getName())) {
+                    unseen.remove(known.id);
+                    continue;
+                }
+            }
+            try {
+                if (!name.endsWith(".dat") || f.getName().length() != 40) {
+                    throw new IOException("Not a cache object");
+                }
+                addEntry(Entry.create(f.getName(), file, new CacheObject(file)));
+            } catch (Exception e) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Rewrite the log with just the variants that are in the index now. The
+     * index is only locked while it's copied, records appended while the copy
+     * is being written out are added to the end of it before it replaces the
+     * log.
+     */
+    private void compact() {
+        StringBuilder sb = new StringBuilder();
+        int count;
+        lock.lock();
+        try {
+            for (Entry entry : sample) {
+                sb.append("+\t").append(entry).append("\n");
+            }
+            count = entryCount;
+            logLock.lock();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (appendedDuringCompaction != null) {
+                // already running on another thread
+                return;
+            }
+            appendedDuringCompaction = new ArrayList<>();
+            logDirty = false;
+        } finally {
+            logLock.unlock();
+        }
+        File tmpFile = new File(logFile.getParentFile(), "index.log.tmp");
+        logFile.getParentFile().mkdirs();
+        IOException failure = null;
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            failure = e;
+        }
+        logLock.lock();
+        try {
+            List<String> appended = appendedDuringCompaction;
+            appendedDuringCompaction = null;
+            if (failure == null) {
+                try (OutputStream out = new FileOutputStream(tmpFile, true)) {
+                    for (String record : appended) {
+                        out.write((record + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure == null) {
+                closeLog();
+                if (tmpFile.renameTo(logFile)) {
+                    logRecords = count + appended.size();
+                    return;
+                }
+                failure = new IOException("Couldn't replace " + logFile);
+            }
+            logDirty = true;
+            reportError("Couldn't compact the cache index", failure);
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Append a record to the log and release logLock, which the caller took.
+     * A record that can't be written leaves the log behind the index, so the
+     * next compaction rewrites it from the index.
+     */
+    private void writeLog(String record) {
+        try {
+            if (appendedDuringCompaction != null) {
+                appendedDuringCompaction.add(record);
+            }
+            try {
+                if (log == null) {
+                    log = new FileOutputStream(logFile, true);
+                }
+                log.write((record + "\n").getBytes(StandardCharsets.UTF_8));
+                logRecords += 1;
+            } catch (IOException e) {
+                closeLog();
+                if (!logDirty) {
+                    // once per failure, rather than once per record
+                    logDirty = true;
+                    reportError("Couldn't write to the cache index", e);
+                }
+            }
+        } finally {
+            logLock.unlock();
+        }
+    }
+
+    private void closeLog() {
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException e) {
+        }
+        log = null;
+    }
+
+    private void reportError(String message, Throwable t) {
+        BiConsumer<String, Throwable> errorLog = this.errorLog;
+        if (errorLog != null) {
+            errorLog.accept(message, t);
+        }
+    }
+
+    /**
+     * A hash of the request headers a response varies on, null if the
+     * request doesn't have all of them.
+     */
+    static String varyFingerprint(String vary, HttpHeader requestHeader) {
+        if (vary.isEmpty()) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String name : vary.split(",")) {
+            List<String> values = requestHeader.getHeaders(name);
+            if (values == null) {
+                return null;
+            }
+            sb.append(name).append('\0');
+            for (String value : values) {
+                sb.append(value).append('\0');
+            }
+            sb.append('\n');
+        }
+        byte[] hash = Hash.hash(Hash.sha1(), sb.toString());
+        StringBuilder hex = new StringBuilder(16);
+        for (int i = 0; i < 8; i++) {
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16)).append(Character.forDigit(hash[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static final class Entry {
+
+        final String cacheHash;
+        final String id;
+        volatile long date;
+        volatile long expires;
+        final long offset;
+        final long contentLength;
+        final String vary; // lowercase header names, comma separated
+        final String varyFingerprint; // null if the cached request lacked a header it varies on
+        // access tracking, guarded by the index
+        long lastAccess;
+        int accessCount = 0;
+        double priority;
+        private int sampleIndex = -1;
+
+        private Entry(String cacheHash, String id, long date, long expires, long offset, long contentLength, String vary, String varyFingerprint) {
+            this.cacheHash = cacheHash;
+            this.id = id;
+            this.date = date;
+            this.expires = expires;
+            this.offset = offset;
+            this.contentLength = contentLength;
+            this.vary = vary;
+            this.varyFingerprint = varyFingerprint;
+            this.lastAccess = date;
+        }
+
+        static Entry create(String cacheHash, File file, CacheObject object) {
+            String name = file.getName();
+            StringBuilder vary = new StringBuilder();
+            List<String> varyHeaders = object.getResponseHeader().getHeaders("Vary");
+            if (varyHeaders != null) {
+                for (String varyHeader : varyHeaders) {
+                    for (String v : varyHeader.split(",")) {
+                        v = v.trim().toLowerCase();
+                        if (v.isEmpty() || (v.equals("accept-encoding") && object.isGzip())) {
+                            // gzip is decompressed for clients that don't take it
+                            continue;
+                        }
+                        if (vary.length() > 0) {
+                            vary.append(",");
+                        }
+                        vary.append(v);
+                    }
+                }
+            }
+            String varyString = vary.toString();
+            return new Entry(cacheHash, name.substring(0, name.length() - 4), object.getDate(), object.getExpiryDate(),
+                    object.getOffset(), object.getContentLength(), varyString, varyFingerprint(varyString, object.getRequestHeader()));
+        }
+
+        private static Entry parse(String[] parts) {
+            if (parts.length < 9) {
+                throw new IllegalArgumentException("Truncated record");
+            }
+            return new Entry(parts[1], parts[2], Long.parseLong(parts[3]), Long.parseLong(parts[4]),
+                    Long.parseLong(parts[5]), Long.parseLong(parts[6]), parts[7], parts[8].equals("-") ? null : parts[8]);
+        }
+
+        boolean matches(HttpHeader clientRequestHeader) {
+            if (varyFingerprint == null) {
+                return false;
+            }
+            return varyFingerprint.equals(varyFingerprint(vary, clientRequestHeader));
+        }
+
+        File getFile(File dataRoot) {
+            return new File(dataRoot, cacheHash.substring(0, 2) + "/" + cacheHash.substring(2, 4) + "/" + cacheHash + "/" + id + ".dat");
+        }
+
+        @Override
+        public String toString() {
+            return cacheHash + "\t" + id + "\t" + date + "\t" + expires + "\t" + offset + "\t" + contentLength
+                    + "\t" + vary + "\t" + (varyFingerprint == null ? "-" : varyFingerprint);
+        }
+    }
+}
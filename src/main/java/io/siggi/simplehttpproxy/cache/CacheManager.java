@@ -1,36 +1,141 @@
 package io.siggi.simplehttpproxy.cache;
 
 import io.siggi.simplehttpproxy.ThreadCreator;
+import io.siggi.simplehttpproxy.io.BufferPool;
 import io.siggi.simplehttpproxy.util.Hash;
 import io.siggi.simplehttpproxy.util.HttpHeader;
+import io.siggi.simplehttpproxy.util.Metrics;
 import io.siggi.simplehttpproxy.util.Util;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 public class CacheManager {
 
     private static final Set<String> uncacheableMimes = new HashSet<>();
+    private static final long staleRetention = 7L * 86400000L;
+
+    private static final Set<String> compressibleMimes = new HashSet<>();
+    // smaller bodies barely shrink, not worth the gzip header
+    private static final long minCompressSize = 256L;
 
     static {
         uncacheableMimes.add("text/html");
         uncacheableMimes.add("application/json");
         uncacheableMimes.add("application/xhtml+xml");
+        compressibleMimes.add("application/javascript");
+        compressibleMimes.add("application/x-javascript");
+        compressibleMimes.add("application/ecmascript");
+        compressibleMimes.add("application/json");
+        compressibleMimes.add("application/xml");
+        compressibleMimes.add("application/wasm");
+        compressibleMimes.add("application/vnd.ms-fontobject");
+        compressibleMimes.add("font/ttf");
+        compressibleMimes.add("font/otf");
     }
 
     private final File root;
     private final File tmp;
+    private final CacheIndex index;
+    private final MemoryCache memory;
+    private final int maxMemoryBodySize;
+    private final ConcurrentHashMap<String, InFlightFetch> inFlight = new ConcurrentHashMap<>();
+    // responses the backend wouldn't serve in slices, and until when to not try again
+    private final ConcurrentHashMap<String, Long> unsliceable = new ConcurrentHashMap<>();
+    private final Object evictorLock = new Object();
+    private long maxSize = 0L;
+    private int maxEntries = 0;
+    private volatile boolean compress = false;
+    private volatile long evictionRate = 0L;
+    private final Metrics.Counter lookups = Metrics.counter("cache.lookups");
+    private final Metrics.Counter hits = Metrics.counter("cache.hits");
+    private final Metrics.Counter evictions = Metrics.counter("cache.evictions");
+    private final Metrics.Counter collapsed = Metrics.counter("cache.collapsed");
+    private final Metrics.Counter revalidated = Metrics.counter("cache.revalidated");
 
     public CacheManager(File root) {
+        this(root, 0L, 0);
+    }
+
+    /**
+     * @param root where the cache is stored on disk
+     * @param memorySize how many bytes of recently used cache objects to keep
+     * in memory, 0 to always read them from disk
+     * @param maxMemoryBodySize the largest body to keep in memory, larger
+     * bodies only have their headers kept in memory
+     */
+    public CacheManager(File root, long memorySize, int maxMemoryBodySize) {
         this.root = root;
+        this.memory = new MemoryCache(memorySize);
+        this.maxMemoryBodySize = maxMemoryBodySize;
         this.tmp = new File(root, "tmp");
         if (tmp.exists()) {
             Util.delete(tmp);
         }
         tmp.mkdirs();
+        this.index = new CacheIndex(root);
+        Metrics.gauge("cache.disk.bytes", index::getTotalSize);
+        Metrics.gauge("cache.disk.entries", index::getEntryCount);
+        Metrics.gauge("cache.hitratio.permille", () -> {
+            long total = lookups.get();
+            return total == 0L ? 0L : hits.get() * 1000L / total;
+        });
+    }
+
+    /**
+     * Store uncompressed text responses gzipped from now on.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Set where to report failures to persist the cache index.
+     */
+    public void setErrorLog(BiConsumer<String, Throwable> errorLog) {
+        index.setErrorLog(errorLog);
+    }
+
+    private static boolean shouldCompress(HttpHeader responseHeader) {
+        if (responseHeader.getHeader("Content-Encoding") != null || responseHeader.getHeader("Content-Range") != null) {
+            return false;
+        }
+        try {
+            if (Long.parseLong(responseHeader.getHeader("Content-Length")) < minCompressSize) {
+                return false;
+            }
+        } catch (Exception e) {
+        }
+        return isCompressibleType(responseHeader.getHeader("Content-Type"));
+    }
+
+    /**
+     * @param contentType a Content-Type header, or null
+     * @return whether bodies of this type are worth compressing
+     */
+    public static boolean isCompressibleType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolonPos = contentType.indexOf(";");
+        if (semicolonPos >= 0) {
+            contentType = contentType.substring(0, semicolonPos);
+        }
+        contentType = contentType.trim().toLowerCase();
+        if (contentType.equals("text/event-stream")) {
+            // compressing would hold events back until enough of them arrive
+            return false;
+        }
+        return contentType.startsWith("text/") || contentType.endsWith("+xml") || contentType.endsWith("+json")
+                || compressibleMimes.contains(contentType);
     }
 
     private static boolean isUncacheable(String contentType) {
@@ -45,13 +150,133 @@ public class CacheManager {
         return new File(root, "data/" + cacheHash.substring(0, 2) + "/" + cacheHash.substring(2, 4) + "/" + cacheHash);
     }
 
-    public CacheBuilder createCache(String cacheIdentifier, HttpHeader requestHeader, HttpHeader responseHeader) throws IOException {
+    /**
+     * @param fetch the fetch this request started with {@link #startFetch},
+     * if any, so requests waiting on it can read the response as it's cached
+     */
+    public CacheBuilder createCache(String cacheIdentifier, HttpHeader requestHeader, HttpHeader responseHeader, InFlightFetch fetch) throws IOException {
+        return createCache(cacheIdentifier, requestHeader, responseHeader, shouldCacheResponse(requestHeader, responseHeader),
+                compress && shouldCompress(responseHeader), fetch);
+    }
+
+    /**
+     * Cache one slice of a large response, fetched with a range request. Only
+     * a 206 covering the range that was asked for is cached.
+     *
+     * @param sliceIdentifier the cache identifier of the slice
+     * @param sliceStart the offset of the slice in the whole response
+     * @param fetch the fetch of this slice, if any
+     */
+    public CacheBuilder createSliceCache(String sliceIdentifier, HttpHeader requestHeader, HttpHeader responseHeader, long sliceStart, InFlightFetch fetch) throws IOException {
+        String contentRange = responseHeader.getHeader("Content-Range");
+        // slices are served as they are stored, they're never decompressed
+        boolean cacheable = contentRange != null && contentRange.startsWith("bytes " + sliceStart + "-")
+                && responseHeader.getHeader("Content-Encoding") == null
+                && isRangeLength(contentRange, sliceStart, responseHeader.getHeader("Content-Length"))
+                && shouldCacheResponse(requestHeader, responseHeader, 206);
+        return createCache(sliceIdentifier, requestHeader, responseHeader, cacheable, false, fetch);
+    }
+
+    private CacheBuilder createCache(String cacheIdentifier, HttpHeader requestHeader, HttpHeader responseHeader, boolean cacheable, boolean compress, InFlightFetch fetch) throws IOException {
         String cacheHash = Util.byteToHex(Hash.hash(Hash.sha1(), cacheIdentifier));
-        if (shouldCacheResponse(requestHeader, responseHeader)) {
-            return new CacheBuilder(getCacheDir(cacheHash), tmp, requestHeader, responseHeader);
-        } else {
+        CacheBuilder builder = null;
+        if (cacheable) {
+            builder = new CacheBuilder(getCacheDir(cacheHash), tmp, requestHeader, responseHeader, compress, file -> committed(cacheHash, file));
+        }
+        if (fetch != null) {
+            if (builder != null) {
+                fetch.building(builder);
+            } else {
+                fetch.abandon();
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Whether a 206's Content-Length matches the range in its Content-Range,
+     * a slice that doesn't can't be served as part of the whole response.
+     */
+    private static boolean isRangeLength(String contentRange, long start, String contentLength) {
+        try {
+            long end = Long.parseLong(contentRange.substring(contentRange.indexOf('-') + 1, contentRange.indexOf('/')).trim());
+            return Long.parseLong(contentLength.trim()) == end - start + 1L;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Remember that the backend didn't answer a range request for a slice of a
+     * response with a complete, cacheable 206, so requests for it are proxied
+     * as usual for a while instead of trying again every time.
+     */
+    public void markUnsliceable(String cacheIdentifier) {
+        long now = System.currentTimeMillis();
+        if (unsliceable.size() >= 10000) {
+            unsliceable.values().removeIf(until -> until <= now);
+            if (unsliceable.size() >= 10000) {
+                unsliceable.clear();
+            }
+        }
+        unsliceable.put(cacheIdentifier, now + 600000L);
+    }
+
+    /**
+     * @return whether slicing failed for this response in the last 10 minutes
+     */
+    public boolean isUnsliceable(String cacheIdentifier) {
+        Long until = unsliceable.get(cacheIdentifier);
+        if (until == null) {
+            return false;
+        }
+        if (until <= System.currentTimeMillis()) {
+            unsliceable.remove(cacheIdentifier, until);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Announce that this request is about to fetch a cache miss from the
+     * backend.
+     *
+     * @return the fetch, to be passed to {@link #createCache} and abandoned
+     * when the request is done, or null if another request is already
+     * fetching it
+     */
+    public InFlightFetch startFetch(String cacheIdentifier) {
+        InFlightFetch fetch = new InFlightFetch(this, cacheIdentifier);
+        return inFlight.putIfAbsent(cacheIdentifier, fetch) == null ? fetch : null;
+    }
+
+    /**
+     * Wait for another request's fetch of the same object and read its
+     * response while it's being cached.
+     *
+     * @return the response, or null if it isn't cacheable, doesn't match this
+     * request, or didn't arrive in time; the caller should fetch it itself
+     */
+    public CacheObject awaitFetch(String cacheIdentifier, HttpHeader clientRequestHeader, long timeout) {
+        InFlightFetch fetch = inFlight.get(cacheIdentifier);
+        if (fetch == null) {
+            return null;
+        }
+        CacheBuilder builder = fetch.await(timeout);
+        if (builder == null) {
+            return null;
+        }
+        CacheObject object = new CacheObject(builder);
+        if (!object.matches(clientRequestHeader)) {
             return null;
         }
+        fetch.follow();
+        collapsed.increment();
+        return object;
+    }
+
+    void fetchFinished(InFlightFetch fetch) {
+        inFlight.remove(fetch.getCacheIdentifier(), fetch);
     }
 
     public CacheObject retrieveCacheObject(String cacheIdentifier, HttpHeader clientRequestHeader) {
@@ -75,40 +300,236 @@ public class CacheManager {
         if (maxAge <= 0L) {
             return null;
         }
-        String cacheHash = Util.byteToHex(Hash.hash(Hash.sha1(), cacheIdentifier));
-        File cacheDir = getCacheDir(cacheHash);
-        if (!cacheDir.exists()) {
+        if (isXmlHttpRequest(clientRequestHeader)) {
             return null;
         }
-        File[] files = cacheDir.listFiles();
+        lookups.increment();
+        String cacheHash = Util.byteToHex(Hash.hash(Hash.sha1(), cacheIdentifier));
         long now = System.currentTimeMillis();
-        CacheObject co = null;
-        for (File file : files) {
-            String name = file.getName();
-            if (!name.endsWith(".dat")) {
-                file.delete();
+        CacheIndex.Entry newest = null;
+        for (CacheIndex.Entry entry : index.get(cacheHash)) {
+            if (entry.expires < now) {
                 continue;
             }
-            try {
-                CacheObject object = new CacheObject(file);
-                if (object.getExpiryDate() < now) {
-                    continue;
+            if ((now - entry.date) > maxAge) {
+                continue;
+            }
+            if (entry.matches(clientRequestHeader)) {
+                if (newest == null || newest.date < entry.date) {
+                    newest = entry;
                 }
-                if ((now - object.getDate()) > maxAge) {
-                    continue;
+            }
+        }
+        CacheObject co = load(newest, clientRequestHeader);
+        if (co != null) {
+            hits.increment();
+        }
+        return co;
+    }
+
+    /**
+     * Find a cached response that has expired, to be revalidated with a
+     * conditional request or served stale.
+     *
+     * @return the response, or null if there is none or the client doesn't
+     * want a cached response at all
+     */
+    public CacheObject retrieveStaleCacheObject(String cacheIdentifier, HttpHeader clientRequestHeader) {
+        List<String> headers = clientRequestHeader.getHeaders("Cache-Control");
+        if (headers != null) {
+            for (String header : headers) {
+                for (String h : header.split(",")) {
+                    if (h.trim().equals("no-store")) {
+                        return null;
+                    }
                 }
-                if (object.matches(clientRequestHeader)) {
-                    if (co == null || co.getDate() < object.getDate()) {
-                        co = object;
+            }
+        }
+        if (isXmlHttpRequest(clientRequestHeader)) {
+            return null;
+        }
+        String cacheHash = Util.byteToHex(Hash.hash(Hash.sha1(), cacheIdentifier));
+        CacheIndex.Entry newest = null;
+        for (CacheIndex.Entry entry : index.get(cacheHash)) {
+            if (entry.matches(clientRequestHeader)) {
+                if (newest == null || newest.date < entry.date) {
+                    newest = entry;
+                }
+            }
+        }
+        return load(newest, clientRequestHeader);
+    }
+
+    /**
+     * The backend answered a conditional request for a stale response with
+     * 304 Not Modified, so it's fresh again. The 304's validators and
+     * freshness information are merged into the stored header (RFC 9111
+     * 4.3.4), which means writing the response to a new file with the same
+     * body. If that fails, only the date and expiry are updated in the index
+     * and the date is patched into the file so a rebuilt index gets it too.
+     *
+     * @param object the stale response
+     * @param notModified the 304 response
+     * @return the refreshed response, which replaces the stale one
+     */
+    public CacheObject refresh(CacheObject object, HttpHeader notModified) {
+        HttpHeader responseHeader = object.getResponseHeader().copy();
+        for (String name : new String[]{"Cache-Control", "Expires", "ETag", "Last-Modified", "Date"}) {
+            List<String> values = notModified.getHeaders(name);
+            if (values != null && !values.isEmpty()) {
+                responseHeader.deleteHeader(name);
+                for (String value : values) {
+                    responseHeader.addHeader(name, value);
+                }
+            }
+        }
+        File file = object.getFile();
+        if (file == null) {
+            return new CacheObject(object, responseHeader);
+        }
+        String cacheHash = file.getParentFile().getName();
+        String id = file.getName().substring(0, file.getName().length() - 4);
+        CacheIndex.Entry current = null;
+        for (CacheIndex.Entry entry : index.get(cacheHash)) {
+            if (entry.id.equals(id)) {
+                current = entry;
+                break;
+            }
+        }
+        revalidated.increment();
+        File rewritten = current == null ? null : rewrite(cacheHash, object, responseHeader);
+        if (rewritten != null) {
+            // committing it usually replaced the stale one already
+            index.remove(current);
+            memory.invalidate(current.id);
+            try {
+                return new CacheObject(rewritten, maxMemoryBodySize);
+            } catch (IOException e) {
+                // evicted in the meantime
+            }
+        }
+        long now = System.currentTimeMillis();
+        long expires = CacheObject.computeExpiry(now, responseHeader);
+        String oldDate = Long.toString(object.getDate());
+        object.refreshed(now, expires);
+        if (current == null || rewritten != null) {
+            // evicted, or replaced by a refresh that got there first
+            return new CacheObject(object, responseHeader);
+        }
+        index.refresh(current, now, expires);
+        String newDate = Long.toString(now);
+        if (oldDate.length() == newDate.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.write(newDate.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+            }
+        }
+        return new CacheObject(object, responseHeader);
+    }
+
+    /**
+     * Write a cached response to a new file with a different header.
+     *
+     * @return the new file once it's been committed, or null if it couldn't
+     * be written
+     */
+    private File rewrite(String cacheHash, CacheObject object, HttpHeader responseHeader) {
+        File[] committedFile = new File[1];
+        CacheBuilder builder = null;
+        try {
+            builder = new CacheBuilder(getCacheDir(cacheHash), tmp, object.getRequestHeader(), responseHeader, file -> {
+                committedFile[0] = file;
+                committed(cacheHash, file);
+            });
+            try (InputStream in = object.getInputStream()) {
+                Util.copy(in, builder, BufferPool.MEDIUM, null);
+            }
+            builder.finished();
+        } catch (IOException e) {
+        } finally {
+            if (builder != null) {
+                builder.close();
+            }
+        }
+        return committedFile[0];
+    }
+
+    /**
+     * @return false if the client asked for a fresh response, so a stale one
+     * can't be served to it even if the backend allows it
+     */
+    public static boolean acceptsStale(HttpHeader clientRequestHeader) {
+        List<String> headers = clientRequestHeader.getHeaders("Cache-Control");
+        if (headers != null) {
+            for (String header : headers) {
+                for (String h : header.split(",")) {
+                    h = h.trim();
+                    if (h.equals("no-cache") || h.equals("no-store") || h.startsWith("max-age=")) {
+                        return false;
                     }
                 }
+            }
+        }
+        String pragma = clientRequestHeader.getHeader("Pragma");
+        return pragma == null || !pragma.equalsIgnoreCase("no-cache");
+    }
+
+    private CacheObject load(CacheIndex.Entry entry, HttpHeader clientRequestHeader) {
+        if (entry == null) {
+            return null;
+        }
+        CacheObject co = memory.get(entry.id);
+        if (co == null) {
+            try {
+                co = new CacheObject(index.getFile(entry), maxMemoryBodySize);
             } catch (IOException ioe) {
+                // deleted behind our back
+                index.remove(entry);
+                return null;
             }
+            memory.put(entry.id, co);
         }
+        if (!co.matches(clientRequestHeader)) {
+            return null;
+        }
+        index.touch(entry);
         return co;
     }
 
+    private static boolean isXmlHttpRequest(HttpHeader clientRequestHeader) {
+        String requestedWith = clientRequestHeader.getHeader("X-Requested-With");
+        return requestedWith != null && requestedWith.equalsIgnoreCase("XMLHttpRequest");
+    }
+
+    private void committed(String cacheHash, File file) {
+        CacheIndex.Entry entry;
+        try {
+            entry = CacheIndex.Entry.create(cacheHash, file, new CacheObject(file));
+        } catch (IOException ioe) {
+            file.delete();
+            return;
+        }
+        index.add(entry);
+        if (isOverQuota()) {
+            synchronized (evictorLock) {
+                evictorLock.notifyAll();
+            }
+        }
+        // older copies of the same variant can never be served again
+        for (CacheIndex.Entry old : index.get(cacheHash)) {
+            if (old != entry && old.date <= entry.date && old.vary.equals(entry.vary)
+                    && old.varyFingerprint != null && old.varyFingerprint.equals(entry.varyFingerprint)) {
+                index.remove(old);
+                memory.invalidate(old.id);
+            }
+        }
+    }
+
     public boolean shouldCacheResponse(HttpHeader clientRequestHeader, HttpHeader serverResponseHeader) {
+        return shouldCacheResponse(clientRequestHeader, serverResponseHeader, 200);
+    }
+
+    private boolean shouldCacheResponse(HttpHeader clientRequestHeader, HttpHeader serverResponseHeader, int expectedResponseCode) {
         String firstLine = serverResponseHeader.getFirstLine();
         int firstSpace = firstLine.indexOf(" ");
         int secondSpace = firstLine.indexOf(" ", firstSpace + 1);
@@ -116,7 +537,7 @@ public class CacheManager {
             return false;
         }
         int responseCode = Integer.parseInt(firstLine.substring(firstSpace + 1, secondSpace));
-        if (responseCode != 200) {
+        if (responseCode != expectedResponseCode) {
             return false;
         }
         String contentType = serverResponseHeader.getHeader("Content-Type");
@@ -160,31 +581,82 @@ public class CacheManager {
         }, "CacheCleanup", true, false).start();
     }
 
-    private void cleanup() {
-        long now = System.currentTimeMillis();
-        File dataRoot = new File(root, "data");
-        cleanup(now, dataRoot);
-        Util.deleteEmptyDirectories(dataRoot);
-    }
-
-    private void cleanup(long now, File f) {
-        for (File file : f.listFiles()) {
-            if (file.isDirectory()) {
-                cleanup(now, file);
-            } else {
-                String name = f.getName();
-                if (!name.endsWith(".dat")) {
-                    f.delete();
-                    continue;
-                }
+    /**
+     * Limit the size of the cache. A background thread evicts variants
+     * whenever it's over either limit, until it's back under 95% of them. The
+     * same thread compacts the index log when needed, so it runs even without
+     * limits.
+     *
+     * @param maxSize the most bytes to keep on disk, 0 for no limit
+     * @param maxEntries the most variants to keep, 0 for no limit
+     * @param policy what to evict first
+     */
+    public void startEvictor(long maxSize, int maxEntries, EvictionPolicy policy) {
+        this.maxSize = maxSize;
+        this.maxEntries = maxEntries;
+        index.setPolicy(policy);
+        Metrics.gauge("cache.disk.max", () -> this.maxSize);
+        Metrics.gauge("cache.evictions.persecond", () -> evictionRate);
+        ThreadCreator.createThread(() -> {
+            long lastCount = evictions.get();
+            long lastTime = System.currentTimeMillis();
+            while (true) {
                 try {
-                    CacheObject co = new CacheObject(file);
-                    if (co.getExpiryDate() < now) {
-                        f.delete();
+                    synchronized (evictorLock) {
+                        if (!isOverQuota()) {
+                            evictorLock.wait(1000L);
+                        }
                     }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    evict();
+                    index.compactIfNeeded();
                 } catch (Exception e) {
-                    f.delete();
                 }
+                long now = System.currentTimeMillis();
+                if (now - lastTime >= 1000L) {
+                    long count = evictions.get();
+                    evictionRate = (count - lastCount) * 1000L / (now - lastTime);
+                    lastCount = count;
+                    lastTime = now;
+                }
+            }
+        }, "CacheEvictor", true, false).start();
+    }
+
+    private boolean isOverQuota() {
+        return (maxSize > 0L && index.getTotalSize() > maxSize)
+                || (maxEntries > 0 && index.getEntryCount() > maxEntries);
+    }
+
+    private void evict() {
+        if (!isOverQuota()) {
+            return;
+        }
+        long targetSize = maxSize - maxSize / 20L;
+        int targetEntries = maxEntries - maxEntries / 20;
+        while ((maxSize > 0L && index.getTotalSize() > targetSize)
+                || (maxEntries > 0 && index.getEntryCount() > targetEntries)) {
+            CacheIndex.Entry victim = index.pickVictim();
+            if (victim == null) {
+                return;
+            }
+            index.remove(victim);
+            memory.invalidate(victim.id);
+            evictions.increment();
+        }
+    }
+
+    private void cleanup() {
+        long now = System.currentTimeMillis();
+        for (CacheIndex.Entry entry : index.all()) {
+            // kept a while after expiry to be revalidated or served stale,
+            // the size limit decides whether there's room for them
+            if (entry.expires + staleRetention < now) {
+                index.remove(entry);
+                memory.invalidate(entry.id);
             }
         }
     }
@@ -1,27 +1,51 @@
 package io.siggi.simplehttpproxy.cache;
 
+import io.siggi.simplehttpproxy.io.BufferPool;
+import io.siggi.simplehttpproxy.io.FileTransfer;
+import io.siggi.simplehttpproxy.io.IOUtil;
 import io.siggi.simplehttpproxy.io.RafInputStream;
 import io.siggi.simplehttpproxy.util.HttpHeader;
 import io.siggi.simplehttpproxy.util.Util;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 public class CacheObject {
 
+    /**
+     * Marks a response the cache gzipped itself, with the length of the
+     * original body, -1 if that's unknown. It's not sent to clients.
+     */
+    public static final String compressedHeader = "X-SHP-Compressed";
+
     private final File file;
-    private final long date;
-    private final long expires;
+    private volatile long date;
+    private volatile long expires;
     private final long contentLength;
     private final long offset;
     private final HttpHeader requestHeader;
     private final HttpHeader responseHeader;
+    private final byte[] body; // null if it has to be read from the file
+    private final CacheBuilder growing; // still being written by another request
 
     CacheObject(File file) throws IOException {
+        this(file, -1);
+    }
+
+    /**
+     * @param maxBodySize keep the body in memory if it's no larger than this
+     */
+    CacheObject(File file, int maxBodySize) throws IOException {
         this.file = file;
         try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
             InputStream in = new RafInputStream(raf, false);
@@ -30,10 +54,62 @@ public class CacheObject {
             this.responseHeader = Util.readHeader(in, Integer.MAX_VALUE);
             this.offset = raf.getFilePointer();
             this.contentLength = raf.length() - offset;
+            if (contentLength <= maxBodySize) {
+                body = new byte[(int) contentLength];
+                raf.seek(offset);
+                raf.readFully(body);
+            } else {
+                body = null;
+            }
         }
+        this.growing = null;
+        this.expires = computeExpiry(date, responseHeader);
+    }
+
+    /**
+     * The same response with a different header, for a refresh whose header
+     * couldn't be stored.
+     */
+    CacheObject(CacheObject object, HttpHeader responseHeader) {
+        this.file = object.file;
+        this.growing = object.growing;
+        this.date = object.date;
+        this.expires = object.expires;
+        this.contentLength = object.contentLength;
+        this.offset = object.offset;
+        this.requestHeader = object.requestHeader;
+        this.responseHeader = responseHeader;
+        this.body = object.body;
+    }
+
+    /**
+     * A response that another request is still fetching, read as it arrives.
+     * The content length is -1 if the backend didn't say how long it is.
+     */
+    CacheObject(CacheBuilder growing) {
+        this.file = null;
+        this.growing = growing;
+        this.date = growing.getDate();
+        this.requestHeader = growing.getRequestHeader();
+        this.responseHeader = growing.getResponseHeader();
+        this.offset = growing.getBodyOffset();
+        this.body = null;
+        long length = -1L;
+        String transferEncoding = responseHeader.getHeader("Transfer-Encoding");
+        if (transferEncoding == null || !transferEncoding.equalsIgnoreCase("chunked")) {
+            try {
+                length = Long.parseLong(responseHeader.getHeader("Content-Length"));
+            } catch (Exception e) {
+            }
+        }
+        this.contentLength = length;
+        this.expires = computeExpiry(date, responseHeader);
+    }
+
+    static long computeExpiry(long date, HttpHeader responseHeader) {
         long exp = date + 14L * 86400000L;
         try {
-            List<String> headers = this.responseHeader.getHeaders("Cache-Control");
+            List<String> headers = responseHeader.getHeaders("Cache-Control");
             if (headers != null) {
                 for (String header : headers) {
                     for (String h : header.split(",")) {
@@ -47,7 +123,98 @@ public class CacheObject {
             }
         } catch (Exception e) {
         }
-        this.expires = exp;
+        return exp;
+    }
+
+    /**
+     * How long after expiry this response may be served stale while it's
+     * refreshed in the background, from its stale-while-revalidate directive.
+     *
+     * @return milliseconds, or -1 if the response doesn't say
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWindow("stale-while-revalidate=");
+    }
+
+    /**
+     * How long after expiry this response may be served stale if the backend
+     * fails, from its stale-if-error directive.
+     *
+     * @return milliseconds, or -1 if the response doesn't say
+     */
+    public long getStaleIfError() {
+        return staleWindow("stale-if-error=");
+    }
+
+    private long staleWindow(String directive) {
+        long window = -1L;
+        List<String> headers = responseHeader.getHeaders("Cache-Control");
+        if (headers == null) {
+            return window;
+        }
+        for (String header : headers) {
+            for (String h : header.split(",")) {
+                h = h.trim().toLowerCase();
+                if (h.equals("must-revalidate") || h.equals("proxy-revalidate") || h.equals("no-cache")) {
+                    return 0L;
+                }
+                if (h.startsWith(directive)) {
+                    try {
+                        window = Long.parseLong(h.substring(directive.length())) * 1000L;
+                    } catch (NumberFormatException e) {
+                    }
+                }
+            }
+        }
+        return window;
+    }
+
+    /**
+     * @return true if the body is stored gzipped, either as the backend sent
+     * it or compressed by the cache. Such a response serves every client
+     * regardless of Accept-Encoding, decompressed for those that can't take
+     * gzip.
+     */
+    public boolean isGzip() {
+        return isGzip(responseHeader);
+    }
+
+    static boolean isGzip(HttpHeader responseHeader) {
+        String contentEncoding = responseHeader.getHeader("Content-Encoding");
+        return contentEncoding != null && contentEncoding.trim().equalsIgnoreCase("gzip");
+    }
+
+    /**
+     * @return true if the backend sent the body uncompressed and the cache
+     * gzipped it
+     */
+    public boolean isCompressedByCache() {
+        return responseHeader.getHeader(compressedHeader) != null;
+    }
+
+    /**
+     * @return the length of the body before the cache compressed it, or -1
+     * if it's unknown or the cache didn't compress it
+     */
+    public long getUncompressedLength() {
+        try {
+            return Long.parseLong(responseHeader.getHeader(compressedHeader));
+        } catch (Exception e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * @return true if the response has an ETag or Last-Modified the backend
+     * can check a conditional request against
+     */
+    public boolean isValidatable() {
+        return responseHeader.getHeader("ETag") != null || responseHeader.getHeader("Last-Modified") != null;
+    }
+
+    void refreshed(long date, long expires) {
+        this.date = date;
+        this.expires = expires;
     }
 
     public long getDate() {
@@ -62,18 +229,171 @@ public class CacheObject {
         return contentLength;
     }
 
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the file, or null if it's still being written
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Check a client's conditional request against this response.
+     *
+     * @param ifNoneMatch the client's If-None-Match header, or null
+     * @param ifModifiedSince the client's If-Modified-Since header, or null
+     * @return true if the client's copy is current and it can be answered
+     * with 304 Not Modified
+     */
+    public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            String etag = responseHeader.getHeader("ETag");
+            if (etag == null) {
+                return false;
+            }
+            etag = stripWeak(etag.trim());
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || stripWeak(tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (ifModifiedSince != null) {
+            String lastModified = responseHeader.getHeader("Last-Modified");
+            if (lastModified == null) {
+                return false;
+            }
+            try {
+                SimpleDateFormat format = Util.getSimpleDateFormat();
+                return format.parse(lastModified).getTime() <= format.parse(ifModifiedSince).getTime();
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
     public HttpHeader getRequestHeader() {
         return requestHeader;
     }
 
+    /**
+     * The headers are shared by everyone who gets this object from the cache,
+     * so copy them before changing them.
+     */
     public HttpHeader getResponseHeader() {
         return responseHeader;
     }
 
+    /**
+     * Roughly how much heap this object takes up.
+     */
+    long getMemorySize() {
+        return offset * 2L + (body == null ? 0L : body.length);
+    }
+
     public InputStream getInputStream() throws IOException {
-        FileInputStream in = new FileInputStream(file);
-        in.skip(offset);
-        return in;
+        if (growing != null) {
+            return growing.openFollower();
+        }
+        if (body != null) {
+            return new ByteArrayInputStream(body);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(offset);
+        return new RafInputStream(raf, true);
+    }
+
+    /**
+     * Read part of the body.
+     *
+     * @param position where in the body to start
+     * @param count how many bytes to read at most
+     */
+    public InputStream getInputStream(long position, long count) throws IOException {
+        if (growing != null) {
+            InputStream in = growing.openFollower();
+            IOUtil.skipFully(in, position);
+            return new BoundedInputStream(in, count);
+        }
+        if (body != null) {
+            return new ByteArrayInputStream(body, (int) position, (int) Math.min(count, body.length - position));
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(offset + position);
+        return new BoundedInputStream(new RafInputStream(raf, true), count);
+    }
+
+    /**
+     * Send part of the body. A body that's only on disk is sent with
+     * FileTransfer, so with a channel it never passes through the heap.
+     *
+     * @param position where in the body to start
+     * @param count how many bytes to send
+     * @param channel the client's socket channel, or null to write to out
+     * @param out where to write if there's no channel
+     */
+    public void writeBody(long position, long count, WritableByteChannel channel, OutputStream out) throws IOException {
+        if (growing == null && body == null) {
+            FileTransfer.transfer(file, offset + position, count, channel, out);
+            return;
+        }
+        if (body != null) {
+            out.write(body, (int) position, (int) count);
+            return;
+        }
+        try (InputStream in = getInputStream(position, count)) {
+            Util.copy(in, out, BufferPool.MEDIUM, null);
+        }
+    }
+
+    /**
+     * Send part of a body the cache compressed, with the position and count
+     * in the body as the backend sent it.
+     */
+    public void writeUncompressedBody(long position, long count, OutputStream out) throws IOException {
+        try (InputStream in = new GZIPInputStream(getInputStream(), 65536)) {
+            IOUtil.skipFully(in, position);
+            Util.copy(new BoundedInputStream(in, count), out, BufferPool.MEDIUM, null);
+        }
+    }
+
+    /**
+     * Check a client's If-Range header against this response.
+     *
+     * @param ifRange the If-Range header, or null
+     * @return true if a Range request may be answered from this response
+     */
+    public boolean isRangeCurrent(String ifRange) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range needs a strong match
+            String etag = responseHeader.getHeader("ETag");
+            return etag != null && !ifRange.startsWith("W/") && ifRange.equals(etag.trim());
+        }
+        String lastModified = responseHeader.getHeader("Last-Modified");
+        if (lastModified == null) {
+            return false;
+        }
+        try {
+            SimpleDateFormat format = Util.getSimpleDateFormat();
+            return format.parse(lastModified).getTime() == format.parse(ifRange).getTime();
+        } catch (ParseException e) {
+            return false;
+        }
     }
 
     boolean matches(HttpHeader clientRequestHeader) {
@@ -86,6 +406,9 @@ public class CacheObject {
             for (String varyHeader : varyHeaders) {
                 for (String vary : varyHeader.split(",")) {
                     vary = vary.trim();
+                    if (vary.equalsIgnoreCase("Accept-Encoding") && isGzip()) {
+                        continue;
+                    }
                     List<String> request = clientRequestHeader.getHeaders(vary);
                     List<String> cachedRequest = requestHeader.getHeaders(vary);
                     if ((request == null && cachedRequest != null)
@@ -98,4 +421,58 @@ public class CacheObject {
         }
         return true;
     }
+
+    /**
+     * Like SubInputStream, but closes the stream it reads from.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+
+        private long left;
+
+        private BoundedInputStream(InputStream in, long count) {
+            super(in);
+            this.left = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left <= 0L) {
+                return -1;
+            }
+            int read = in.read();
+            if (read != -1) {
+                left -= 1L;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int o, int l) throws IOException {
+            if (left <= 0L) {
+                return -1;
+            }
+            int amount = in.read(b, o, (int) Math.min(l, left));
+            if (amount > 0) {
+                left -= amount;
+            }
+            return amount;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, left));
+            left -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), left);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
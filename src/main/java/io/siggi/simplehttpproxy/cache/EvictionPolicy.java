@@ -0,0 +1,39 @@
+package io.siggi.simplehttpproxy.cache;
+
+/**
+ * How the cache decides what to evict when it's over its quota. The variant
+ * with the lowest priority goes first.
+ */
+public enum EvictionPolicy {
+    /**
+     * Least recently used.
+     */
+    LRU {
+        @Override
+        double priority(CacheIndex.Entry entry, double inflation) {
+            return entry.lastAccess;
+        }
+    },
+    /**
+     * Least frequently used, since it was cached or since startup.
+     */
+    LFU {
+        @Override
+        double priority(CacheIndex.Entry entry, double inflation) {
+            return entry.accessCount;
+        }
+    },
+    /**
+     * Greedy-Dual-Size-Frequency, favours small objects that are used often.
+     * The inflation value rises to the priority of each evicted variant, so
+     * objects that were popular long ago eventually age out.
+     */
+    GDSF {
+        @Override
+        double priority(CacheIndex.Entry entry, double inflation) {
+            return inflation + ((double) entry.accessCount) / Math.max(1L, entry.offset + entry.contentLength);
+        }
+    };
+
+    abstract double priority(CacheIndex.Entry entry, double inflation);
+}
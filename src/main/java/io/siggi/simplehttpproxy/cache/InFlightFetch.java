@@ -0,0 +1,116 @@
+package io.siggi.simplehttpproxy.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache miss that is being fetched from the backend. Other requests for the
+ * same object wait for it instead of going to the backend themselves, and
+ * read the response from its CacheBuilder while it's being written.
+ */
+public final class InFlightFetch {
+
+    private final CacheManager manager;
+    private final String cacheIdentifier;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition resolved = lock.newCondition();
+    private CacheBuilder builder = null; // guarded by lock
+    private boolean done = false; // guarded by lock
+    private int followers = 0; // guarded by lock
+
+    InFlightFetch(CacheManager manager, String cacheIdentifier) {
+        this.manager = manager;
+        this.cacheIdentifier = cacheIdentifier;
+    }
+
+    String getCacheIdentifier() {
+        return cacheIdentifier;
+    }
+
+    void building(CacheBuilder builder) {
+        lock.lock();
+        try {
+            this.builder = builder;
+            builder.setFetch(this);
+            resolved.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the request that is doing the fetch once it's done with it.
+     * Does nothing if the response is being cached, since then the fetch
+     * lasts until the cache is filled.
+     */
+    public void abandon() {
+        lock.lock();
+        try {
+            if (builder != null) {
+                return;
+            }
+            done = true;
+            resolved.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        manager.fetchFinished(this);
+    }
+
+    void finished() {
+        lock.lock();
+        try {
+            done = true;
+        } finally {
+            lock.unlock();
+        }
+        manager.fetchFinished(this);
+    }
+
+    void follow() {
+        lock.lock();
+        try {
+            followers++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether other requests have joined this fetch to read its response
+     */
+    public boolean hasFollowers() {
+        lock.lock();
+        try {
+            return followers > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the response headers to arrive.
+     *
+     * @return the builder that the response is being written to, or null if
+     * it isn't being cached or didn't arrive in time
+     */
+    CacheBuilder await(long timeout) {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (builder == null && !done) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    return null;
+                }
+                resolved.awaitNanos(remaining);
+            }
+            return builder;
+        } catch (InterruptedException e) {
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package io.siggi.simplehttpproxy.cache;
+
+import io.siggi.simplehttpproxy.util.Metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Recently used cache objects with their headers already parsed, so a hit
+ * doesn't have to open the file and re-read both header blocks. Small bodies
+ * are kept too, larger ones are still streamed from their file.
+ * <p>
+ * Entries are keyed by variant, which never changes once it's written, and
+ * evicted least recently used first once the total size goes over the limit.
+ */
+final class MemoryCache {
+
+    private final long maxSize;
+    // not a monitor, so a virtual thread waiting for it doesn't pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    // access order, eldest first
+    private final LinkedHashMap<String, CacheObject> objects = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0L;
+    private final Metrics.Counter hits = Metrics.counter("cache.memory.hits");
+    private final Metrics.Counter misses = Metrics.counter("cache.memory.misses");
+    private final Metrics.Counter evictions = Metrics.counter("cache.memory.evictions");
+
+    MemoryCache(long maxSize) {
+        this.maxSize = maxSize;
+        Metrics.gauge("cache.memory.bytes", () -> {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        });
+        Metrics.gauge("cache.memory.entries", () -> {
+            lock.lock();
+            try {
+                return objects.size();
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * @return the object, or null if it has to be read from disk
+     */
+    CacheObject get(String id) {
+        CacheObject object;
+        lock.lock();
+        try {
+            object = objects.get(id);
+        } finally {
+            lock.unlock();
+        }
+        if (object == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return object;
+    }
+
+    void put(String id, CacheObject object) {
+        long objectSize = object.getMemorySize();
+        if (maxSize <= 0L || objectSize > maxSize / 8L) {
+            // not worth pushing out everything else for
+            return;
+        }
+        lock.lock();
+        try {
+            CacheObject old = objects.put(id, object);
+            if (old != null) {
+                size -= old.getMemorySize();
+            }
+            size += objectSize;
+            Iterator<CacheObject> it = objects.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= it.next().getMemorySize();
+                it.remove();
+                evictions.increment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void invalidate(String id) {
+        lock.lock();
+        try {
+            CacheObject old = objects.remove(id);
+            if (old != null) {
+                size -= old.getMemorySize();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package io.siggi.simplehttpproxy.http2;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541). One decoder belongs to one
+ * connection, since the dynamic table carries over from block to block.
+ * <p>
+ * Names and values are returned as ISO-8859-1 strings so the bytes come back
+ * out unchanged when they are written as an HTTP/1.1 header.
+ */
+public class HpackDecoder {
+
+    static final String[][] staticTable = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    private final int maxTableSizeLimit;
+    private int maxTableSize;
+    private int tableSize = 0;
+    // newest first, as the dynamic table is indexed
+    private final Deque<String[]> dynamicTable = new ArrayDeque<>();
+
+    /**
+     * @param maxTableSize the SETTINGS_HEADER_TABLE_SIZE we announced
+     */
+    public HpackDecoder(int maxTableSize) {
+        this.maxTableSizeLimit = maxTableSize;
+        this.maxTableSize = maxTableSize;
+    }
+
+    /**
+     * Decode a complete header block.
+     *
+     * @param block the header block, after any CONTINUATION frames have been
+     * joined to it
+     * @param sizeLimit the most we'll accept, counted like
+     * SETTINGS_MAX_HEADER_LIST_SIZE
+     * @return name and value pairs, in order
+     * @throws IOException if the block can't be decoded, this is a connection
+     * error since the dynamic table is now out of sync
+     */
+    public List<String[]> decode(byte[] block, int sizeLimit) throws IOException {
+        List<String[]> fields = new ArrayList<>();
+        int[] pos = {0};
+        int listSize = 0;
+        boolean fieldSeen = false;
+        while (pos[0] < block.length) {
+            int b = block[pos[0]] & 0xff;
+            String[] field;
+            if ((b & 0x80) != 0) {
+                // indexed header field
+                field = get(readInt(block, pos, 7));
+            } else if ((b & 0x40) != 0) {
+                // literal with incremental indexing
+                field = readLiteral(block, pos, 6);
+                add(field);
+            } else if ((b & 0x20) != 0) {
+                // dynamic table size update, only allowed before the first field
+                if (fieldSeen) {
+                    throw new IOException("Table size update after header field");
+                }
+                int newSize = readInt(block, pos, 5);
+                if (newSize > maxTableSizeLimit) {
+                    throw new IOException("Table size update too large");
+                }
+                maxTableSize = newSize;
+                evict();
+                continue;
+            } else {
+                // literal without indexing or never indexed
+                field = readLiteral(block, pos, 4);
+            }
+            fieldSeen = true;
+            listSize += field[0].length() + field[1].length() + 32;
+            if (listSize > sizeLimit) {
+                throw new IOException("Header list too large");
+            }
+            fields.add(field);
+        }
+        return fields;
+    }
+
+    private String[] get(int index) throws IOException {
+        if (index <= 0) {
+            throw new IOException("Invalid header index");
+        }
+        if (index <= staticTable.length) {
+            return staticTable[index - 1];
+        }
+        index -= staticTable.length + 1;
+        if (index >= dynamicTable.size()) {
+            throw new IOException("Invalid header index");
+        }
+        Iterator<String[]> it = dynamicTable.iterator();
+        for (int i = 0; i < index; i++) {
+            it.next();
+        }
+        return it.next();
+    }
+
+    private void add(String[] field) {
+        int size = field[0].length() + field[1].length() + 32;
+        if (size > maxTableSize) {
+            // an entry larger than the table empties it
+            dynamicTable.clear();
+            tableSize = 0;
+            return;
+        }
+        dynamicTable.addFirst(field);
+        tableSize += size;
+        evict();
+    }
+
+    private void evict() {
+        while (tableSize > maxTableSize) {
+            String[] removed = dynamicTable.removeLast();
+            tableSize -= removed[0].length() + removed[1].length() + 32;
+        }
+    }
+
+    private String[] readLiteral(byte[] block, int[] pos, int prefix) throws IOException {
+        int index = readInt(block, pos, prefix);
+        String name = index == 0 ? readString(block, pos) : get(index)[0];
+        String value = readString(block, pos);
+        return new String[]{name, value};
+    }
+
+    private static String readString(byte[] block, int[] pos) throws IOException {
+        if (pos[0] >= block.length) {
+            throw new IOException("Truncated header block");
+        }
+        boolean huffman = (block[pos[0]] & 0x80) != 0;
+        int length = readInt(block, pos, 7);
+        if (length > block.length - pos[0]) {
+            throw new IOException("Truncated header block");
+        }
+        byte[] bytes;
+        if (huffman) {
+            bytes = Huffman.decode(block, pos[0], length);
+        } else {
+            bytes = new byte[length];
+            System.arraycopy(block, pos[0], bytes, 0, length);
+        }
+        pos[0] += length;
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int readInt(byte[] block, int[] pos, int prefix) throws IOException {
+        int mask = (1 << prefix) - 1;
+        int value = block[pos[0]++] & mask;
+        if (value < mask) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= block.length) {
+                throw new IOException("Truncated header block");
+            }
+            int b = block[pos[0]++] & 0xff;
+            if (shift > 21) {
+                throw new IOException("Integer too large");
+            }
+            value += (b & 0x7f) << shift;
+            shift += 7;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
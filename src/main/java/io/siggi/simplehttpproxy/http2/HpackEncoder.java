@@ -0,0 +1,68 @@
+package io.siggi.simplehttpproxy.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes HPACK header blocks using only literals that don't touch the
+ * dynamic table. Names found in the static table are sent as an index. This
+ * gives up some compression but keeps the encoder stateless, so blocks can be
+ * encoded by any thread in any order and only have to be written in order.
+ */
+public class HpackEncoder {
+
+    private static final Map<String, Integer> staticNames = new HashMap<>();
+
+    static {
+        for (int i = HpackDecoder.staticTable.length - 1; i >= 0; i--) {
+            staticNames.put(HpackDecoder.staticTable[i][0], i + 1);
+        }
+    }
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /**
+     * Add a header field.
+     *
+     * @param name the lowercase name
+     * @param value the value, as an ISO-8859-1 string
+     */
+    public void add(String name, String value) {
+        Integer index = staticNames.get(name);
+        if (index == null) {
+            out.write(0x00);
+            writeString(name);
+        } else {
+            // literal without indexing, indexed name
+            writeInt(0x00, 4, index);
+        }
+        writeString(value);
+    }
+
+    public byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+    private void writeString(String string) {
+        byte[] bytes = string.getBytes(StandardCharsets.ISO_8859_1);
+        writeInt(0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private void writeInt(int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,186 @@
+package io.siggi.simplehttpproxy.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed size buffer between one writing thread and one reading thread. The
+ * writer blocks while the buffer is full, the reader blocks while it is empty
+ * and gets end of stream once the writer has closed its end.
+ * <p>
+ * Unlike PipedInputStream this doesn't poll, and it uses a lock rather than
+ * synchronized so a virtual thread waiting on it doesn't pin its carrier.
+ */
+public class BoundedPipe {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final byte[] buffer;
+    private int readPos = 0;
+    private int count = 0;
+    private boolean writeClosed = false;
+    private boolean readClosed = false;
+    private boolean aborted = false;
+    private final InputStream inputStream = new PipeInputStream();
+    private final OutputStream outputStream = new PipeOutputStream();
+
+    public BoundedPipe(int size) {
+        this.buffer = new byte[size];
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Signal end of stream to the reader.
+     */
+    public void closeWrite() {
+        lock.lock();
+        try {
+            writeClosed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop reading, anything still being written fails.
+     */
+    public void closeRead() {
+        lock.lock();
+        try {
+            readClosed = true;
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Break the pipe in both directions, the reader gets an exception instead
+     * of end of stream so it can tell the data is incomplete.
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            readClosed = true;
+            count = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int amount = read(b, 0, 1);
+            return amount == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int o, int l) throws IOException {
+            if (l == 0) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (aborted) {
+                        throw new IOException("Pipe aborted");
+                    }
+                    if (writeClosed || readClosed) {
+                        return -1;
+                    }
+                    notEmpty.await();
+                }
+                int amount = Math.min(l, Math.min(count, buffer.length - readPos));
+                System.arraycopy(buffer, readPos, b, o, amount);
+                readPos = (readPos + amount) % buffer.length;
+                count -= amount;
+                notFull.signalAll();
+                return amount;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int available() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeRead();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int o, int l) throws IOException {
+            lock.lock();
+            try {
+                while (l > 0) {
+                    if (writeClosed) {
+                        throw new IOException("Pipe closed");
+                    }
+                    if (readClosed) {
+                        // the client connection on the other end is gone
+                        throw new SocketException("Socket is closed");
+                    }
+                    if (count == buffer.length) {
+                        notFull.await();
+                        continue;
+                    }
+                    int writePos = (readPos + count) % buffer.length;
+                    int amount = Math.min(l, Math.min(buffer.length - count, buffer.length - writePos));
+                    System.arraycopy(b, o, buffer, writePos, amount);
+                    count += amount;
+                    o += amount;
+                    l -= amount;
+                    notEmpty.signalAll();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            closeWrite();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package io.siggi.simplehttpproxy.io;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Copy buffers in three sizes, shared by everything that moves bodies and
+ * tunnelled data around so that each copy doesn't allocate its own.
+ * <p>
+ * Each thread keeps one small and one medium buffer for itself, which is
+ * where most buffers come from and go back to. Past that, buffers go to a
+ * bounded queue per size, and anything the queue has no room for is left to
+ * the garbage collector. Large buffers only go through the queue, so an idle
+ * thread holds on to 20 KB at most. Those per thread buffers aren't counted
+ * against the queue bounds, so they add up to 20 KB times the number of
+ * threads, 80 MB with 4096 idle handler threads. They can be turned off with
+ * {@link #setThreadLocalSlots(boolean)}, which is done for virtual threads
+ * since there can be far more of them.
+ * <p>
+ * With leak detection on, every buffer handed out is tracked along with where
+ * it was acquired, and buffers that are garbage collected without being
+ * released, or released twice, are reported. Buffers that were handed out
+ * before it was turned on aren't tracked, and are taken back as usual. This
+ * is slow and only meant for debugging.
+ */
+public final class BufferPool {
+
+    public static final int SMALL = 4096;
+    public static final int MEDIUM = 16384;
+    public static final int LARGE = 65536;
+
+    private static final int[] sizes = {SMALL, MEDIUM, LARGE};
+    private static final ArrayBlockingQueue<byte[]> smallPool = new ArrayBlockingQueue<>(256);
+    private static final ArrayBlockingQueue<byte[]> mediumPool = new ArrayBlockingQueue<>(128);
+    private static final ArrayBlockingQueue<byte[]> largePool = new ArrayBlockingQueue<>(32);
+    private static final ThreadLocal<byte[][]> local = ThreadLocal.withInitial(() -> new byte[2][]);
+    private static final AtomicLong allocated = new AtomicLong();
+    private static volatile boolean threadLocalSlots = true;
+
+    private static volatile Consumer<Throwable> leakReporter = null;
+    private static final ReferenceQueue<byte[]> collected = new ReferenceQueue<>();
+    private static final Map<byte[], Tracker> outstanding = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Set<Tracker> trackers = ConcurrentHashMap.newKeySet();
+    // buffers given back while leak detection was on, to tell a second release from an untracked buffer
+    private static final Map<byte[], Boolean> released = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private BufferPool() {
+    }
+
+    /**
+     * Get a buffer of at least the requested size. Requests over
+     * {@link #LARGE} get a buffer of their own that is never pooled.
+     */
+    public static byte[] acquire(int size) {
+        int sizeClass = size <= SMALL ? 0 : size <= MEDIUM ? 1 : size <= LARGE ? 2 : -1;
+        if (sizeClass == -1) {
+            return new byte[size];
+        }
+        byte[] buffer = null;
+        if (sizeClass < 2 && threadLocalSlots) {
+            byte[][] mine = local.get();
+            buffer = mine[sizeClass];
+            mine[sizeClass] = null;
+        }
+        if (buffer == null) {
+            buffer = pool(sizeClass).poll();
+        }
+        if (buffer == null) {
+            buffer = new byte[sizes[sizeClass]];
+            allocated.incrementAndGet();
+        }
+        if (leakReporter != null) {
+            track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back. It must not be used afterwards.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int sizeClass = buffer.length == SMALL ? 0 : buffer.length == MEDIUM ? 1 : buffer.length == LARGE ? 2 : -1;
+        if (sizeClass == -1) {
+            return;
+        }
+        if (leakReporter != null && !untrack(buffer)) {
+            // pooling it again would hand the same buffer to two users
+            return;
+        }
+        if (sizeClass < 2 && threadLocalSlots) {
+            byte[][] mine = local.get();
+            if (mine[sizeClass] == null) {
+                mine[sizeClass] = buffer;
+                return;
+            }
+        }
+        pool(sizeClass).offer(buffer);
+    }
+
+    /**
+     * @return how many buffers have been allocated for the pool so far
+     */
+    public static long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Turn the buffers each thread keeps for itself on or off. Off, every
+     * buffer goes through the bounded queues.
+     */
+    public static void setThreadLocalSlots(boolean enabled) {
+        threadLocalSlots = enabled;
+    }
+
+    /**
+     * Turn leak detection on, reporting leaks to the given consumer, or off
+     * if it's null.
+     */
+    public static void setLeakDetection(Consumer<Throwable> reporter) {
+        leakReporter = reporter;
+        if (reporter == null) {
+            // buffers handed out from now on aren't tracked, turning it on again starts over
+            outstanding.clear();
+            trackers.clear();
+            released.clear();
+        }
+    }
+
+    private static ArrayBlockingQueue<byte[]> pool(int sizeClass) {
+        return sizeClass == 0 ? smallPool : sizeClass == 1 ? mediumPool : largePool;
+    }
+
+    private static void track(byte[] buffer) {
+        Tracker tracker = new Tracker(buffer, new Throwable("Buffer acquired here was never released"));
+        trackers.add(tracker);
+        released.remove(buffer);
+        outstanding.put(buffer, tracker);
+        reportLeaks();
+    }
+
+    /**
+     * @return false if the buffer was released already and mustn't be pooled
+     * again
+     */
+    private static boolean untrack(byte[] buffer) {
+        Tracker tracker = outstanding.remove(buffer);
+        if (tracker == null) {
+            if (released.containsKey(buffer)) {
+                report(new Throwable("Buffer released twice"));
+                return false;
+            }
+            // handed out before leak detection was turned on
+            released.put(buffer, Boolean.TRUE);
+            return true;
+        }
+        tracker.clear();
+        trackers.remove(tracker);
+        released.put(buffer, Boolean.TRUE);
+        return true;
+    }
+
+    private static void reportLeaks() {
+        Tracker tracker;
+        while ((tracker = (Tracker) collected.poll()) != null) {
+            if (trackers.remove(tracker)) {
+                report(tracker.acquiredAt);
+            }
+        }
+    }
+
+    private static void report(Throwable t) {
+        Consumer<Throwable> reporter = leakReporter;
+        if (reporter != null) {
+            reporter.accept(t);
+        }
+    }
+
+    private static final class Tracker extends WeakReference<byte[]> {
+
+        final Throwable acquiredAt;
+
+        Tracker(byte[] buffer, Throwable acquiredAt) {
+            super(buffer, collected);
+            this.acquiredAt = acquiredAt;
+        }
+    }
+}
@@ -1,61 +1,195 @@
 package io.siggi.simplehttpproxy.io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+/**
+ * Decodes a chunked body.
+ * <p>
+ * Chunk size lines are parsed out of a small buffer. From a
+ * SecureBufferedInputStream the line is read in bulk and whatever was read
+ * past it is given back, any other stream is read one byte at a time. Chunk
+ * extensions are ignored, and the trailer section after the last chunk is
+ * consumed and kept so that it can be passed on with {@link #getTrailers()}.
+ */
 public final class ChunkedInputStream extends InputStream {
 
+    private static final int maxLineBuffer = 8192;
+
     private final InputStream in;
+    private final SecureBufferedInputStream buffered;
     private final byte[] singleByte = new byte[1];
+    private byte[] line = new byte[256];
     private long remainingInChunk = 0;
+    private boolean afterChunkData = false;
     private boolean endOfStream = false;
     private boolean receivedTerminatorChunk = false;
+    private byte[] trailers = null;
+
+    // set by parse()
+    private long parsedSize;
+    private byte[] parsedTrailers;
 
     public ChunkedInputStream(InputStream in) {
         this.in = in;
+        this.buffered = in instanceof SecureBufferedInputStream ? (SecureBufferedInputStream) in : null;
     }
 
-    private String readLine() throws IOException {
-        int c;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        boolean eof = true;
-        while ((c = in.read()) != -1) {
-            eof = false;
-            if (c == 0x0A) {
-                break;
+    /**
+     * Read the next chunk size line, and the trailers if it's the last chunk.
+     *
+     * @return false if the stream ended first
+     */
+    private boolean nextChunk() throws IOException {
+        int length = 0;
+        try {
+            while (true) {
+                if (length == line.length) {
+                    if (line.length >= maxLineBuffer) {
+                        throw new IOException("Chunk size line or trailers too long");
+                    }
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                int amount;
+                if (buffered != null) {
+                    amount = buffered.read(line, length, line.length - length);
+                } else {
+                    int c = in.read();
+                    if (c != -1) {
+                        line[length] = (byte) c;
+                    }
+                    amount = c == -1 ? -1 : 1;
+                }
+                if (amount == -1) {
+                    return false;
+                }
+                length += amount;
+                int consumed = parse(length);
+                if (consumed >= 0) {
+                    if (buffered != null) {
+                        buffered.unread(length - consumed);
+                    }
+                    startChunk();
+                    return true;
+                }
             }
-            baos.write(c);
+        } finally {
+            Arrays.fill(line, 0, length, (byte) 0);
+        }
+    }
+
+    /**
+     * Parse the next chunk size line without blocking, if all of it has been
+     * buffered already.
+     */
+    private boolean peekChunk() throws IOException {
+        int available = buffered.available();
+        if (available <= 0) {
+            return false;
+        }
+        int length = buffered.read(line, 0, Math.min(line.length, available));
+        if (length <= 0) {
+            return false;
         }
-        String line = new String(baos.toByteArray(), StandardCharsets.UTF_8);
-        if (line.endsWith("\r")) {
-            line = line.substring(0, line.length() - 1);
+        try {
+            int consumed = parse(length);
+            buffered.unread(consumed >= 0 ? length - consumed : length);
+            if (consumed < 0) {
+                return false;
+            }
+            startChunk();
+            return true;
+        } finally {
+            Arrays.fill(line, 0, length, (byte) 0);
         }
-        if (line.isEmpty() && eof) {
-            return null;
+    }
+
+    private void startChunk() {
+        remainingInChunk = parsedSize;
+        if (parsedSize == 0L) {
+            receivedTerminatorChunk = true;
+            endOfStream = true;
+            trailers = parsedTrailers;
         }
-        return line;
+        afterChunkData = parsedSize != 0L;
     }
 
-    private long getChunkSize() throws IOException {
-        int c = 0;
-        String line;
-        while ((line = readLine()) != null) {
-            try {
-                long s = Long.parseLong(line, 16);
-                if (s == 0) {
-                    receivedTerminatorChunk = true;
+    /**
+     * @return how many bytes of the line buffer the size line (and trailers)
+     * took up, or -1 if the line buffer doesn't hold all of it yet
+     */
+    private int parse(int length) throws IOException {
+        byte[] b = line;
+        int i = 0;
+        if (afterChunkData) {
+            // the line end after the previous chunk's data
+            if (i < length && b[i] == 0x0D) {
+                i += 1;
+            }
+            if (i == length) {
+                return -1;
+            }
+            if (b[i] != 0x0A) {
+                throw new IOException("Missing line end after chunk data");
+            }
+            i += 1;
+        }
+        long size = 0L;
+        int digits = 0;
+        for (; i < length; i++) {
+            int digit = Character.digit(b[i], 16);
+            if (digit < 0) {
+                break;
+            }
+            if (++digits > 15) {
+                throw new IOException("Chunk size too big");
+            }
+            size = (size << 4) | digit;
+        }
+        if (i == length) {
+            return -1;
+        }
+        if (digits == 0 || (b[i] != ';' && b[i] != ' ' && b[i] != '\t' && b[i] != 0x0D && b[i] != 0x0A)) {
+            throw new IOException("Invalid chunk size");
+        }
+        // anything after the size is a chunk extension, which we don't use
+        int end = indexOfLineFeed(b, i, length);
+        if (end == -1) {
+            return -1;
+        }
+        end += 1;
+        byte[] foundTrailers = null;
+        if (size == 0L) {
+            int trailerStart = end;
+            while (true) {
+                int lineFeed = indexOfLineFeed(b, end, length);
+                if (lineFeed == -1) {
+                    return -1;
+                }
+                boolean blank = lineFeed == end || (lineFeed == end + 1 && b[end] == 0x0D);
+                if (blank) {
+                    if (end > trailerStart) {
+                        foundTrailers = Arrays.copyOfRange(b, trailerStart, end);
+                    }
+                    end = lineFeed + 1;
+                    break;
                 }
-                return s;
-            } catch (Exception e) {
+                end = lineFeed + 1;
             }
-            c += 1;
-            if (c >= 3) {
-                return 0L;
+        }
+        parsedSize = size;
+        parsedTrailers = foundTrailers;
+        return end;
+    }
+
+    private static int indexOfLineFeed(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == 0x0A) {
+                return i;
             }
         }
-        return 0L;
+        return -1;
     }
 
     @Override
@@ -77,20 +211,16 @@ public final class ChunkedInputStream extends InputStream {
         if (endOfStream) {
             return -1;
         }
-        int maxRead;
         if (remainingInChunk <= 0L) {
-            remainingInChunk = getChunkSize();
-            if (remainingInChunk == 0L) {
+            if (!nextChunk()) {
                 endOfStream = true;
                 return -1;
             }
+            if (endOfStream) {
+                return -1;
+            }
         }
-        if (remainingInChunk > Integer.MAX_VALUE) {
-            maxRead = Integer.MAX_VALUE;
-        } else {
-            maxRead = (int) remainingInChunk;
-        }
-        int actualLength = Math.min(length, maxRead);
+        int actualLength = (int) Math.min(length, remainingInChunk);
         int readAmount = in.read(buffer, offset, actualLength);
         if (readAmount == -1) {
             endOfStream = true;
@@ -100,7 +230,31 @@ public final class ChunkedInputStream extends InputStream {
         return readAmount;
     }
 
+    /**
+     * Data that can be read without blocking. At the end of a chunk, the next
+     * size line is parsed if it has already arrived so that this doesn't drop
+     * to 0 between chunks that were sent together.
+     */
+    @Override
+    public int available() throws IOException {
+        if (endOfStream) {
+            return 0;
+        }
+        if (remainingInChunk <= 0L && (buffered == null || !peekChunk() || endOfStream)) {
+            return 0;
+        }
+        return (int) Math.min(remainingInChunk, in.available());
+    }
+
     public boolean didReceiveTerminatorChunk() {
         return receivedTerminatorChunk;
     }
+
+    /**
+     * @return the trailer lines after the last chunk, each with its line end,
+     * or null if there weren't any
+     */
+    public byte[] getTrailers() {
+        return trailers;
+    }
 }
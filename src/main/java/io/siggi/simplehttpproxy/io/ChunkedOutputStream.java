@@ -3,12 +3,53 @@ package io.siggi.simplehttpproxy.io;
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * Encodes a chunked body.
+ * <p>
+ * Writes are gathered into one buffer and sent as a single chunk, size line
+ * and line end included, once it is full or the stream is flushed. Closing
+ * sends the last chunk, and any trailers, but leaves the stream underneath
+ * open. The buffer comes from the BufferPool and goes back when the stream is
+ * closed, so a chunk is a little smaller than the chunk size to leave room for
+ * the framing.
+ */
 public final class ChunkedOutputStream extends OutputStream {
 
+    private static final int headerRoom = 10; // hex size and line end
+    private static final int framing = headerRoom + 7; // and the line end and last chunk after the data
+    private static final byte[] lastChunk = {0x30, 0x0D, 0x0A, 0x0D, 0x0A};
+    private static final byte[] hexDigits = "0123456789abcdef".getBytes();
+    private static volatile int defaultChunkSize = 16384;
+
     private final OutputStream out;
+    private final int chunkSize;
+    private byte[] buffer;
+    private int capacity;
+    private int count = 0;
+    private byte[] trailers = null;
     private boolean closed = false;
+
     public ChunkedOutputStream(OutputStream out) {
+        this(out, defaultChunkSize);
+    }
+
+    public ChunkedOutputStream(OutputStream out, int chunkSize) {
         this.out = out;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Set how much data is gathered into each chunk by default.
+     */
+    public static void setDefaultChunkSize(int chunkSize) {
+        defaultChunkSize = Math.max(1024, Math.min(1048576, chunkSize));
+    }
+
+    /**
+     * Set trailer lines to send after the last chunk, each with its line end.
+     */
+    public void setTrailers(byte[] trailers) {
+        this.trailers = trailers;
     }
 
     @Override
@@ -16,12 +57,13 @@ public final class ChunkedOutputStream extends OutputStream {
         if (closed) {
             throw new IOException("Stream closed!");
         }
-        out.write((Integer.toString(1, 16)).getBytes());
-        out.write(0x0D);
-        out.write(0x0A);
-        out.write(b);
-        out.write(0x0D);
-        out.write(0x0A);
+        if (buffer == null) {
+            allocate();
+        }
+        buffer[headerRoom + count++] = (byte) b;
+        if (count == capacity) {
+            writeChunk();
+        }
     }
 
     @Override
@@ -34,12 +76,51 @@ public final class ChunkedOutputStream extends OutputStream {
         if (closed) {
             throw new IOException("Stream closed!");
         }
-        out.write((Integer.toString(len, 16)).getBytes());
-        out.write(0x0D);
-        out.write(0x0A);
-        out.write(b, off, len);
-        out.write(0x0D);
-        out.write(0x0A);
+        if (buffer == null && len > 0) {
+            allocate();
+        }
+        while (len > 0) {
+            int amount = Math.min(len, capacity - count);
+            System.arraycopy(b, off, buffer, headerRoom + count, amount);
+            count += amount;
+            off += amount;
+            len -= amount;
+            if (count == capacity) {
+                writeChunk();
+            }
+        }
+    }
+
+    private void allocate() {
+        buffer = BufferPool.acquire(chunkSize);
+        capacity = Math.min(chunkSize, buffer.length - framing);
+    }
+
+    private void writeChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int start = frame();
+        out.write(buffer, start, headerRoom + count + 2 - start);
+        count = 0;
+    }
+
+    /**
+     * Put the size line in front of the buffered data and a line end after it.
+     *
+     * @return where the chunk starts in the buffer
+     */
+    private int frame() {
+        int end = headerRoom + count;
+        buffer[end] = 0x0D;
+        buffer[end + 1] = 0x0A;
+        int start = headerRoom;
+        buffer[--start] = 0x0A;
+        buffer[--start] = 0x0D;
+        for (int size = count; size != 0; size >>>= 4) {
+            buffer[--start] = hexDigits[size & 0xf];
+        }
+        return start;
     }
 
     @Override
@@ -47,6 +128,7 @@ public final class ChunkedOutputStream extends OutputStream {
         if (closed) {
             return;
         }
+        writeChunk();
         out.flush();
     }
 
@@ -56,11 +138,37 @@ public final class ChunkedOutputStream extends OutputStream {
             return;
         }
         closed = true;
+        try {
+            if (count == 0) {
+                if (trailers == null) {
+                    out.write(lastChunk);
+                } else {
+                    out.write(lastChunk, 0, 3);
+                    writeTrailers();
+                }
+            } else {
+                // the rest of the data and the last chunk go out together
+                int start = frame();
+                int end = headerRoom + count + 2;
+                System.arraycopy(lastChunk, 0, buffer, end, trailers == null ? 5 : 3);
+                end += trailers == null ? 5 : 3;
+                out.write(buffer, start, end - start);
+                if (trailers != null) {
+                    writeTrailers();
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+            buffer = null;
+        }
         out.flush();
-        out.write(0x30);
-        out.write(0x0D);
-        out.write(0x0A);
-        out.write(0x0D);
-        out.write(0x0A);
+    }
+
+    private void writeTrailers() throws IOException {
+        byte[] b = new byte[trailers.length + 2];
+        System.arraycopy(trailers, 0, b, 0, trailers.length);
+        b[trailers.length] = 0x0D;
+        b[trailers.length + 1] = 0x0A;
+        out.write(b);
     }
 }
@@ -0,0 +1,110 @@
+package io.siggi.simplehttpproxy.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses a response body with gzip or deflate on its way to the client.
+ * <p>
+ * Deflaters are taken from a pool and handed back when the stream is closed,
+ * so compressing a response doesn't allocate a new one (and its native
+ * buffers) every time. Flushing sync flushes the deflater, so everything
+ * written so far can be decompressed by the client right away. Closing
+ * finishes the compressed stream and closes the stream underneath, which
+ * should be something like a ChunkedOutputStream that doesn't close the
+ * connection.
+ */
+public final class CompressingOutputStream extends DeflaterOutputStream {
+
+    private static final int level = 6;
+    private static final ArrayBlockingQueue<Deflater> gzipPool = new ArrayBlockingQueue<>(64);
+    private static final ArrayBlockingQueue<Deflater> deflatePool = new ArrayBlockingQueue<>(64);
+    private static final byte[] gzipHeader = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final boolean gzip;
+    private final CRC32 crc;
+    private boolean closed = false;
+
+    private CompressingOutputStream(OutputStream out, boolean gzip) throws IOException {
+        // sync flush, so flushing while the backend is idle sends what was compressed so far
+        super(out, acquire(gzip), 16384, true);
+        this.gzip = gzip;
+        if (gzip) {
+            crc = new CRC32();
+            out.write(gzipHeader);
+        } else {
+            crc = null;
+        }
+    }
+
+    /**
+     * @param coding gzip, x-gzip or deflate
+     * @return the compressing stream, or null if the coding isn't supported
+     */
+    public static CompressingOutputStream create(String coding, OutputStream out) throws IOException {
+        switch (coding) {
+            case "gzip":
+            case "x-gzip":
+                return new CompressingOutputStream(out, true);
+            case "deflate":
+                return new CompressingOutputStream(out, false);
+            default:
+                return null;
+        }
+    }
+
+    private static Deflater acquire(boolean gzip) {
+        Deflater deflater = (gzip ? gzipPool : deflatePool).poll();
+        // gzip wraps raw deflate data in its own header, deflate is the zlib format
+        return deflater == null ? new Deflater(level, gzip) : deflater;
+    }
+
+    private static void release(Deflater deflater, boolean gzip) {
+        deflater.reset();
+        if (!(gzip ? gzipPool : deflatePool).offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        if (crc != null) {
+            crc.update(b, off, len);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (def.finished()) {
+            return;
+        }
+        super.finish();
+        if (gzip) {
+            long value = crc.getValue();
+            long size = def.getBytesRead();
+            out.write(new byte[]{
+                (byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24),
+                (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+            out.close();
+        } finally {
+            release(def, gzip);
+        }
+    }
+}
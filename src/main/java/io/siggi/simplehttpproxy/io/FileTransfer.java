@@ -0,0 +1,75 @@
+package io.siggi.simplehttpproxy.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sends a region of a file to a client.
+ * <p>
+ * When the client is a plain socket with a channel, the region is handed to
+ * FileChannel.transferTo so the kernel can send it without copying it through
+ * the heap (sendfile on Linux). Otherwise, for TLS and for anything that isn't
+ * backed by a socket, it's copied through a large pooled buffer with
+ * positional reads so that each write is big enough to fill whole TLS records.
+ */
+public class FileTransfer {
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Send part of a file.
+     *
+     * @param file the file to send
+     * @param position where in the file to start
+     * @param count how many bytes to send
+     * @param channel the client's socket channel, in blocking mode, or null to
+     * write to out instead
+     * @param out where to write if there's no channel
+     * @throws IOException if the file is shorter than expected or writing fails
+     */
+    public static void transfer(File file, long position, long count, WritableByteChannel channel, OutputStream out) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel != null) {
+                while (count > 0L) {
+                    long amount = fileChannel.transferTo(position, count, channel);
+                    if (amount <= 0L) {
+                        // a blocking channel only comes up short when the file does
+                        if (position >= fileChannel.size()) {
+                            throw new EOFException("File truncated");
+                        }
+                        continue;
+                    }
+                    position += amount;
+                    count -= amount;
+                }
+                return;
+            }
+            byte[] buffer = BufferPool.acquire((int) Math.min(BufferPool.LARGE, Math.max(count, 1L)));
+            try {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+                while (count > 0L) {
+                    byteBuffer.clear();
+                    if (count < buffer.length) {
+                        byteBuffer.limit((int) count);
+                    }
+                    int amount = fileChannel.read(byteBuffer, position);
+                    if (amount == -1) {
+                        throw new EOFException("File truncated");
+                    }
+                    out.write(buffer, 0, amount);
+                    position += amount;
+                    count -= amount;
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+        }
+    }
+}
@@ -73,4 +73,17 @@ public class IOUtil {
         }
         return buffer;
     }
+
+    public static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0L) {
+            long skipped = in.skip(count);
+            if (skipped <= 0L) {
+                if (in.read() == -1) {
+                    throw eof();
+                }
+                skipped = 1L;
+            }
+            count -= skipped;
+        }
+    }
 }
@@ -190,6 +190,45 @@ public class SecureBufferedInputStream extends InputStream {
         }
     }
 
+    /**
+     * Find a sequence of bytes in the data that has already been buffered,
+     * without reading anything from the underlying stream.
+     *
+     * @param sequence the bytes to look for
+     * @param fromOffset where to start looking, relative to the current read
+     * position
+     * @return the offset of the sequence relative to the current read
+     * position, or -1 if it isn't in the buffer
+     */
+    public int indexOfBuffered(byte[] sequence, int fromOffset) {
+        byte[] buf = getBuffer();
+        int last = writePos - sequence.length;
+        outer:
+        for (int i = readPos + Math.max(0, fromOffset); i <= last; i++) {
+            for (int j = 0; j < sequence.length; j++) {
+                if (buf[i + j] != sequence[j]) {
+                    continue outer;
+                }
+            }
+            return i - readPos;
+        }
+        return -1;
+    }
+
+    /**
+     * Give back bytes returned by the most recent read, so that they're
+     * returned again by the next read.
+     *
+     * @param count how many bytes from the end of the most recent read to
+     * give back, no more than that read returned
+     */
+    public void unread(int count) {
+        if (count < 0 || count > readPos) {
+            throw new IllegalArgumentException();
+        }
+        readPos -= count;
+    }
+
     /**
      * Discard the mark so that it can be erased.
      */
@@ -2,6 +2,8 @@ package io.siggi.simplehttpproxy.net;
 
 import io.siggi.simplehttpproxy.SimpleHttpProxy;
 import io.siggi.simplehttpproxy.ThreadCreator;
+import io.siggi.simplehttpproxy.io.BufferPool;
+import io.siggi.simplehttpproxy.util.Options;
 import io.siggi.simplehttpproxy.util.Util;
 
 import java.io.IOException;
@@ -18,6 +20,7 @@ public class SslProxy {
     private final Socket clientSocket;
     private final SimpleHttpProxy.SSLUpgradeResult upgradeResult;
     private final InetSocketAddress backend;
+    private final int bufferSize = Options.getInt("buffer.tunnel", BufferPool.MEDIUM);
     private long lastActivity;
     private boolean started = false;
     private Socket serverSocket;
@@ -61,7 +64,7 @@ public class SslProxy {
             ThreadCreator.createThread(this::clientBound, null, false, true).start();
             while (true) {
                 try {
-                    Util.copy(in, out, count -> lastActivity = System.currentTimeMillis());
+                    Util.copy(in, out, bufferSize, count -> lastActivity = System.currentTimeMillis());
                     break;
                 } catch (SocketTimeoutException e) {
                     if (System.currentTimeMillis() - lastActivity > 120000L) {
@@ -81,7 +84,7 @@ public class SslProxy {
             OutputStream out = clientSocket.getOutputStream();
             while (true) {
                 try {
-                    Util.copy(in, out, count -> lastActivity = System.currentTimeMillis());
+                    Util.copy(in, out, bufferSize, count -> lastActivity = System.currentTimeMillis());
                     break;
                 } catch (SocketTimeoutException e) {
                     if (System.currentTimeMillis() - lastActivity > 120000L) {
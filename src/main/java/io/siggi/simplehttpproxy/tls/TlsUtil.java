@@ -2,16 +2,77 @@ package io.siggi.simplehttpproxy.tls;
 
 import io.siggi.simplehttpproxy.io.IOUtil;
 
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 
 public class TlsUtil {
 
+    private static final Method setApplicationProtocols;
+    private static final Method getApplicationProtocol;
+
+    static {
+        // ALPN is only in the API from Java 9 (and late Java 8 updates)
+        Method set = null;
+        Method get = null;
+        try {
+            set = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+            get = SSLSocket.class.getMethod("getApplicationProtocol");
+        } catch (Exception e) {
+            set = null;
+            get = null;
+        }
+        setApplicationProtocols = set;
+        getApplicationProtocol = get;
+    }
+
     private TlsUtil() {
     }
 
+    /**
+     * Offer application protocols through ALPN, must be called before the
+     * handshake.
+     *
+     * @param socket the socket
+     * @param protocols the protocols we support, most preferred first
+     * @return false if this JVM doesn't support ALPN
+     */
+    public static boolean setApplicationProtocols(SSLSocket socket, String... protocols) {
+        if (setApplicationProtocols == null) {
+            return false;
+        }
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            setApplicationProtocols.invoke(parameters, (Object) protocols);
+            socket.setSSLParameters(parameters);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the application protocol that was selected through ALPN.
+     *
+     * @param socket the socket, after the handshake
+     * @return the protocol, or null if none was selected
+     */
+    public static String getApplicationProtocol(SSLSocket socket) {
+        if (getApplicationProtocol == null) {
+            return null;
+        }
+        try {
+            String protocol = (String) getApplicationProtocol.invoke(socket);
+            return protocol == null || protocol.isEmpty() ? null : protocol;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     public static byte[] readTlsPacket(InputStream in) throws IOException {
         return readTlsPacket(in, -1);
     }
@@ -0,0 +1,96 @@
+package io.siggi.simplehttpproxy.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One range of a byte range request, with both ends inclusive.
+ */
+public final class ByteRange {
+
+    // more than this many ranges is more likely abuse than a real client
+    private static final int maxRanges = 16;
+    public final long start;
+    public final long end;
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1L;
+    }
+
+    /**
+     * Parse a Range header against a response of a known length. Ranges that
+     * start past the end are dropped and ranges that end past it are cut
+     * short.
+     *
+     * @param rangeHeader the Range header, or null
+     * @param length the length of the whole response
+     * @return the ranges in the order they were asked for, or null if there is
+     * no Range header, it can't be parsed, or none of it can be satisfied, in
+     * which case the whole response should be sent
+     */
+    public static List<ByteRange> parse(String rangeHeader, long length) {
+        if (rangeHeader == null) {
+            return null;
+        }
+        rangeHeader = rangeHeader.trim();
+        if (!rangeHeader.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = rangeHeader.substring(6).split(",");
+        if (specs.length > maxRanges) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int pos = spec.indexOf("-");
+                if (pos == -1) {
+                    return null;
+                }
+                String l = spec.substring(0, pos).trim();
+                String r = spec.substring(pos + 1).trim();
+                long start;
+                long end;
+                if (l.isEmpty()) {
+                    // bytes=-N, the last N bytes
+                    long suffix = Long.parseLong(r);
+                    if (suffix < 0L) {
+                        return null;
+                    }
+                    if (suffix == 0L) {
+                        continue;
+                    }
+                    start = Math.max(0L, length - suffix);
+                    end = length - 1L;
+                } else {
+                    start = Long.parseLong(l);
+                    end = r.isEmpty() ? length - 1L : Long.parseLong(r);
+                    if (start < 0L || end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1L);
+                }
+                if (start >= length) {
+                    continue;
+                }
+                ranges.add(new ByteRange(start, end));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges.isEmpty() ? null : ranges;
+    }
+
+    /**
+     * @return the Content-Range value for this range
+     */
+    public String contentRange(long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+}
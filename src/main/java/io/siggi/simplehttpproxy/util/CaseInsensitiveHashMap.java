@@ -24,6 +24,12 @@ public class CaseInsensitiveHashMap<V> implements Map<String, V> {
         return m;
     }
 
+    // for lookups, which shouldn't add a mapping for a key that isn't there
+    private String findMapping(String str) {
+        String m = mappings.get(str.toLowerCase());
+        return m == null ? str : m;
+    }
+
     private void clearMapping(String str) {
         mappings.remove(str.toLowerCase());
     }
@@ -43,12 +49,7 @@ public class CaseInsensitiveHashMap<V> implements Map<String, V> {
         if (!(k instanceof String)) {
             return false;
         }
-        String key = (String) k;
-        if (!map.containsKey(getMapping(key))) {
-            clearMapping(key);
-            return false;
-        }
-        return true;
+        return map.containsKey(findMapping((String) k));
     }
 
     @Override
@@ -61,8 +62,7 @@ public class CaseInsensitiveHashMap<V> implements Map<String, V> {
         if (!(k instanceof String)) {
             return null;
         }
-        String key = (String) k;
-        return map.get(getMapping(key));
+        return map.get(findMapping((String) k));
     }
 
     @Override
@@ -79,7 +79,9 @@ public class CaseInsensitiveHashMap<V> implements Map<String, V> {
             return null;
         }
         String key = (String) k;
-        return map.remove(getMapping(key));
+        V old = map.remove(findMapping(key));
+        clearMapping(key);
+        return old;
     }
 
     @Override
@@ -0,0 +1,281 @@
+package io.siggi.simplehttpproxy.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The headers of an HTTP message, with case insensitive names and the values
+ * of each name kept in the order they were added.
+ * <p>
+ * Headers are kept in the order they were first added, with a small open
+ * addressed table over them that is hashed by folding ASCII case, so lookups
+ * don't allocate. Removing a header rebuilds the table, which is cheap at the
+ * size headers usually are.
+ * <p>
+ * Values read by HeaderParser stay as bytes until they are asked for, and are
+ * written out as those bytes if nobody ever asked.
+ */
+public final class HeaderMap {
+
+    private Entry[] entries;
+    private int size = 0;
+    private int[] slots; // index into entries + 1, 0 if empty
+
+    public HeaderMap() {
+        this(8);
+    }
+
+    private HeaderMap(int capacity) {
+        entries = new Entry[capacity];
+        slots = new int[capacity * 2];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the first value of a header, or null if it isn't there
+     */
+    public String get(String name) {
+        Entry entry = find(name);
+        return entry == null ? null : entry.first();
+    }
+
+    /**
+     * @return every value of a header, or null if it isn't there
+     */
+    public List<String> getAll(String name) {
+        Entry entry = find(name);
+        return entry == null ? null : new Values(entry);
+    }
+
+    public boolean contains(String name) {
+        return find(name) != null;
+    }
+
+    /**
+     * Replace every value of a header with one value.
+     */
+    public void set(String name, String value) {
+        Entry entry = new Entry(name, hash(name));
+        entry.first = value;
+        int slot = findSlot(name, entry.hash);
+        if (slots[slot] != 0) {
+            // keeps its place in the order
+            entries[slots[slot] - 1] = entry;
+        } else {
+            insert(entry, slot);
+        }
+    }
+
+    /**
+     * Add a value to a header, after any it already has.
+     */
+    public void add(String name, String value) {
+        Entry entry = find(name);
+        if (entry == null) {
+            set(name, value);
+        } else {
+            entry.add(value);
+        }
+    }
+
+    /**
+     * Add a value that hasn't been decoded yet.
+     */
+    void addRaw(String name, byte[] raw, int offset, int length) {
+        Entry entry = find(name);
+        if (entry != null) {
+            entry.add(new String(raw, offset, length, StandardCharsets.UTF_8));
+            return;
+        }
+        int hash = hash(name);
+        entry = new Entry(name, hash);
+        entry.raw = raw;
+        entry.rawOffset = offset;
+        entry.rawLength = length;
+        insert(entry, findSlot(name, hash));
+    }
+
+    public void remove(String name) {
+        int slot = findSlot(name, hash(name));
+        if (slots[slot] == 0) {
+            return;
+        }
+        int index = slots[slot] - 1;
+        System.arraycopy(entries, index + 1, entries, index, size - index - 1);
+        size -= 1;
+        entries[size] = null;
+        rebuildSlots();
+    }
+
+    /**
+     * @return the name of the header at a position in the order
+     */
+    public String getName(int index) {
+        return entries[index].name;
+    }
+
+    /**
+     * @return the values of the header at a position in the order
+     */
+    public List<String> getValues(int index) {
+        return new Values(entries[index]);
+    }
+
+    public HeaderMap copy() {
+        HeaderMap copy = new HeaderMap(entries.length);
+        for (int i = 0; i < size; i++) {
+            copy.entries[i] = entries[i].copy();
+        }
+        copy.size = size;
+        System.arraycopy(slots, 0, copy.slots, 0, slots.length);
+        return copy;
+    }
+
+    void writeTo(HeaderWriter writer) {
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries[i];
+            if (entry.first == null && entry.raw != null) {
+                writer.header(entry.name, entry.raw, entry.rawOffset, entry.rawLength);
+            } else {
+                writer.header(entry.name, entry.first);
+            }
+            for (int j = 0; j < entry.moreCount; j++) {
+                writer.header(entry.name, entry.more[j]);
+            }
+        }
+    }
+
+    private Entry find(String name) {
+        int index = slots[findSlot(name, hash(name))];
+        return index == 0 ? null : entries[index - 1];
+    }
+
+    // the slot the name is in, or the empty slot it would go in
+    private int findSlot(String name, int hash) {
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot];
+            if (index == 0) {
+                return slot;
+            }
+            Entry entry = entries[index - 1];
+            if (entry.hash == hash && entry.name.equalsIgnoreCase(name)) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(Entry entry, int slot) {
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+            slots = new int[entries.length * 2];
+            entries[size++] = entry;
+            rebuildSlots();
+            return;
+        }
+        entries[size++] = entry;
+        slots[slot] = size;
+    }
+
+    private void rebuildSlots() {
+        Arrays.fill(slots, 0);
+        int mask = slots.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = entries[i].hash & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    private static int hash(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            h = h * 31 + c;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+
+        final String name;
+        final int hash;
+        String first;
+        byte[] raw;
+        int rawOffset;
+        int rawLength;
+        String[] more;
+        int moreCount = 0;
+
+        Entry(String name, int hash) {
+            this.name = name;
+            this.hash = hash;
+        }
+
+        String first() {
+            String value = first;
+            if (value == null && raw != null) {
+                first = value = new String(raw, rawOffset, rawLength, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+
+        void add(String value) {
+            if (more == null) {
+                more = new String[2];
+            } else if (moreCount == more.length) {
+                more = Arrays.copyOf(more, moreCount * 2);
+            }
+            more[moreCount++] = value;
+        }
+
+        Entry copy() {
+            Entry copy = new Entry(name, hash);
+            copy.first = first;
+            copy.raw = raw;
+            copy.rawOffset = rawOffset;
+            copy.rawLength = rawLength;
+            if (more != null) {
+                copy.more = Arrays.copyOf(more, more.length);
+                copy.moreCount = moreCount;
+            }
+            return copy;
+        }
+    }
+
+    private static final class Values extends AbstractList<String> implements RandomAccess {
+
+        private final Entry entry;
+
+        Values(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index == 0) {
+                return entry.first();
+            }
+            if (index < 0 || index > entry.moreCount) {
+                throw new IndexOutOfBoundsException();
+            }
+            return entry.more[index - 1];
+        }
+
+        @Override
+        public int size() {
+            return 1 + entry.moreCount;
+        }
+    }
+}
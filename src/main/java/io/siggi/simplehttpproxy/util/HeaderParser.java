@@ -0,0 +1,238 @@
+package io.siggi.simplehttpproxy.util;
+
+import io.siggi.simplehttpproxy.exception.TooBigException;
+import io.siggi.simplehttpproxy.io.SecureBufferedInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads HTTP headers into a buffer that is reused from one message to the
+ * next, meant to be kept for the lifetime of a connection.
+ * <p>
+ * From a SecureBufferedInputStream, the header is copied in bulk and scanned
+ * for line ends in place, and whatever was read past the end of the header is
+ * given back to the stream. Any other stream is read one byte at a time so
+ * that nothing after the header is consumed. Header names that match a well
+ * known one exactly use a shared String instead of a new one, and values are
+ * only decoded when they're asked for.
+ * <p>
+ * Lines are limited to the size limit like with Util.readHeader, and so is
+ * the combined size of the header lines after the first.
+ */
+public final class HeaderParser {
+
+    private static final String[] knownNames = {
+        "Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Age",
+        "Authorization", "Cache-Control", "Connection", "Content-Encoding", "Content-Length",
+        "Content-Range", "Content-Type", "Cookie", "Date", "DNT", "ETag", "Expect", "Expires",
+        "If-Match", "If-Modified-Since", "If-None-Match", "If-Range", "Keep-Alive", "Last-Modified",
+        "Location", "Origin", "Pragma", "Priority", "Range", "Referer", "Sec-Fetch-Dest", "Sec-Fetch-Mode",
+        "Sec-Fetch-Site", "Sec-Fetch-User", "Sec-CH-UA", "Sec-CH-UA-Mobile", "Sec-CH-UA-Platform",
+        "Server", "Set-Cookie", "Transfer-Encoding", "Upgrade", "Upgrade-Insecure-Requests", "Vary",
+        "Via", "X-Forwarded-For", "X-Forwarded-Proto", "X-Real-IP", "X-Requested-With"
+    };
+    private static final String[][] knownByLength;
+    private static final int maxKnownLength;
+
+    static {
+        int max = 0;
+        for (String name : knownNames) {
+            max = Math.max(max, name.length());
+        }
+        maxKnownLength = max;
+        knownByLength = new String[max + 1][];
+        for (int length = 0; length <= max; length++) {
+            List<String> names = new ArrayList<>();
+            for (String name : knownNames) {
+                if (name.length() == length) {
+                    names.add(name);
+                }
+            }
+            knownByLength[length] = names.toArray(new String[0]);
+        }
+    }
+
+    private byte[] buffer = new byte[4096];
+
+    /**
+     * Read a header.
+     *
+     * @param in the stream to read from
+     * @param sizeLimit the longest a line may be, and the most the header
+     * lines after the first may add up to
+     * @return the header, or null if the stream ended before there was one
+     * @throws TooBigException if the header is over the size limit
+     */
+    public HttpHeader read(InputStream in, int sizeLimit) throws IOException {
+        SecureBufferedInputStream buffered = in instanceof SecureBufferedInputStream ? (SecureBufferedInputStream) in : null;
+        int length = 0;
+        int scanned = 0;
+        int lineStart = 0;
+        int firstLineStart = 0;
+        int firstLineEnd = -1;
+        int end = -1;
+        try {
+            scan:
+            while (true) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int amount;
+                if (buffered != null) {
+                    amount = buffered.read(buffer, length, buffer.length - length);
+                } else {
+                    int c = in.read();
+                    if (c != -1) {
+                        buffer[length] = (byte) c;
+                    }
+                    amount = c == -1 ? -1 : 1;
+                }
+                if (amount == -1) {
+                    break;
+                }
+                length += amount;
+                for (int i = Math.max(scanned, lineStart + 1); i < length; i++) {
+                    if (buffer[i] != 0x0A || buffer[i - 1] != 0x0D) {
+                        continue;
+                    }
+                    int lineEnd = i - 1;
+                    if (lineEnd - lineStart >= sizeLimit) {
+                        throw new TooBigException();
+                    }
+                    if (firstLineEnd == -1) {
+                        if (lineEnd == lineStart) {
+                            // blank lines before a request are ignored
+                            lineStart = i + 1;
+                            continue;
+                        }
+                        firstLineStart = lineStart;
+                        firstLineEnd = lineEnd;
+                    } else if (sizeLimit > 0 && i + 1 - (firstLineEnd + 2) > sizeLimit) {
+                        throw new TooBigException();
+                    } else if (lineEnd == lineStart) {
+                        end = i + 1;
+                        break scan;
+                    }
+                    lineStart = i + 1;
+                }
+                scanned = length;
+                // nothing past the end of the header has been read yet at this point
+                if (length - lineStart > sizeLimit
+                        || (firstLineEnd != -1 && sizeLimit > 0 && length - (firstLineEnd + 2) > sizeLimit)) {
+                    throw new TooBigException();
+                }
+            }
+            if (end == -1) {
+                if (firstLineEnd == -1 || length == firstLineEnd + 2) {
+                    return null;
+                }
+                // the stream ended without a blank line, use what there is
+                end = length;
+            } else if (buffered != null && end < length) {
+                buffered.unread(length - end);
+            }
+            return parse(firstLineStart, firstLineEnd, end);
+        } finally {
+            // it may have held credentials
+            Arrays.fill(buffer, 0, length, (byte) 0);
+        }
+    }
+
+    private HttpHeader parse(int firstLineStart, int firstLineEnd, int end) {
+        String firstLine = new String(buffer, firstLineStart, firstLineEnd - firstLineStart, StandardCharsets.UTF_8);
+        // values are decoded from this copy when they're asked for, the buffer gets reused
+        int blockStart = firstLineEnd + 2;
+        byte[] block = Arrays.copyOfRange(buffer, blockStart, end);
+        HeaderMap headers = new HeaderMap();
+        String key = null;
+        int valueStart = 0;
+        int valueEnd = 0;
+        String folded = null; // the value, if it continues on more lines
+        int lineStart = blockStart;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && !(buffer[lineEnd] == 0x0D && lineEnd + 1 < end && buffer[lineEnd + 1] == 0x0A)) {
+                lineEnd += 1;
+            }
+            int next = Math.min(end, lineEnd + 2);
+            int a = trimStart(lineStart, lineEnd);
+            int b = trimEnd(a, lineEnd);
+            if (a == b) {
+                lineStart = next;
+                continue;
+            }
+            if (a != lineStart) {
+                // folded onto the previous line
+                if (key != null) {
+                    if (folded == null) {
+                        folded = new String(buffer, valueStart, valueEnd - valueStart, StandardCharsets.UTF_8);
+                    }
+                    folded += new String(buffer, a, b - a, StandardCharsets.UTF_8);
+                }
+            } else {
+                if (key != null) {
+                    addHeader(headers, key, block, valueStart - blockStart, valueEnd - valueStart, folded);
+                    key = folded = null;
+                }
+                int colon = a;
+                while (colon < b && buffer[colon] != ':') {
+                    colon += 1;
+                }
+                if (colon < b) {
+                    key = name(a, trimEnd(a, colon));
+                    valueStart = trimStart(colon + 1, b);
+                    valueEnd = b;
+                }
+            }
+            lineStart = next;
+        }
+        if (key != null) {
+            addHeader(headers, key, block, valueStart - blockStart, valueEnd - valueStart, folded);
+        }
+        return new HttpHeader(firstLine, headers);
+    }
+
+    private static void addHeader(HeaderMap headers, String key, byte[] block, int offset, int length, String folded) {
+        if (folded != null) {
+            headers.add(key, folded);
+        } else {
+            headers.addRaw(key, block, offset, length);
+        }
+    }
+
+    private String name(int start, int end) {
+        int length = end - start;
+        if (length <= maxKnownLength) {
+            candidates:
+            for (String candidate : knownByLength[length]) {
+                for (int i = 0; i < length; i++) {
+                    if (buffer[start + i] != candidate.charAt(i)) {
+                        continue candidates;
+                    }
+                }
+                return candidate;
+            }
+        }
+        return new String(buffer, start, length, StandardCharsets.UTF_8);
+    }
+
+    // same as String.trim(), everything up to and including a space is trimmed
+    private int trimStart(int start, int end) {
+        while (start < end && (buffer[start] & 0xff) <= 0x20) {
+            start += 1;
+        }
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && (buffer[end - 1] & 0xff) <= 0x20) {
+            end -= 1;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,158 @@
+package io.siggi.simplehttpproxy.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Encodes a header, and optionally a small body, into one buffer so that it
+ * goes out in a single write instead of a small write (and possibly a TCP
+ * segment) per piece.
+ * <p>
+ * ASCII is copied straight into the buffer without going through a charset
+ * encoder, anything else is encoded as UTF-8. Lines that never change can be
+ * encoded once with {@link #encode(String...)} and appended as bytes. Buffers
+ * come from a small pool and go back to it once the header has been written.
+ */
+public final class HeaderWriter {
+
+    private static final int bufferSize = 8192;
+    private static final ArrayBlockingQueue<byte[]> pool = new ArrayBlockingQueue<>(64);
+    private static final byte[] crlf = {0x0D, 0x0A};
+
+    private byte[] buffer;
+    private int length = 0;
+
+    public HeaderWriter() {
+        byte[] b = pool.poll();
+        buffer = b == null ? new byte[bufferSize] : b;
+    }
+
+    /**
+     * Encode lines that never change, to be appended with {@link #bytes(byte[])}.
+     *
+     * @param lines the lines, without line endings
+     * @return the lines with CRLF after each
+     */
+    public static byte[] encode(String... lines) {
+        HeaderWriter writer = new HeaderWriter();
+        for (String line : lines) {
+            writer.line(line);
+        }
+        byte[] encoded = Arrays.copyOf(writer.buffer, writer.length);
+        writer.release();
+        return encoded;
+    }
+
+    public HeaderWriter line(String line) {
+        append(line);
+        return bytes(crlf);
+    }
+
+    public HeaderWriter header(String name, String value) {
+        append(name);
+        ensureCapacity(2);
+        buffer[length++] = ':';
+        buffer[length++] = ' ';
+        append(value);
+        return bytes(crlf);
+    }
+
+    public HeaderWriter headers(Map<String, List<String>> headers) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            for (String value : entry.getValue()) {
+                header(entry.getKey(), value);
+            }
+        }
+        return this;
+    }
+
+    public HeaderWriter headers(HeaderMap headers) {
+        headers.writeTo(this);
+        return this;
+    }
+
+    /**
+     * Append a whole header, including the blank line at the end.
+     */
+    public HeaderWriter header(HttpHeader header) {
+        line(header.getFirstLine());
+        headers(header.getHeaders());
+        return bytes(crlf);
+    }
+
+    // a value that's still encoded
+    HeaderWriter header(String name, byte[] value, int offset, int count) {
+        append(name);
+        ensureCapacity(2);
+        buffer[length++] = ':';
+        buffer[length++] = ' ';
+        bytes(value, offset, count);
+        return bytes(crlf);
+    }
+
+    /**
+     * Append the blank line that ends the header.
+     */
+    public HeaderWriter end() {
+        return bytes(crlf);
+    }
+
+    public HeaderWriter bytes(byte[] b) {
+        return bytes(b, 0, b.length);
+    }
+
+    public HeaderWriter bytes(byte[] b, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(b, offset, buffer, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * Write everything that was appended in one write. The writer can't be
+     * used after this.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        try {
+            out.write(buffer, 0, length);
+        } finally {
+            release();
+        }
+    }
+
+    private void append(String str) {
+        int count = str.length();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            char c = str.charAt(i);
+            if (c >= 0x80) {
+                // rare in headers, start over with the charset encoder
+                length -= i;
+                bytes(str.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            buffer[length++] = (byte) c;
+        }
+    }
+
+    private void ensureCapacity(int count) {
+        if (length + count > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+        }
+    }
+
+    private void release() {
+        byte[] b = buffer;
+        buffer = null;
+        if (b != null && b.length == bufferSize) {
+            // headers going to a backend may hold credentials
+            Arrays.fill(b, 0, length, (byte) 0);
+            pool.offer(b);
+        }
+    }
+}
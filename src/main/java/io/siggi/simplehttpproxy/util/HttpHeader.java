@@ -6,16 +6,14 @@ import io.siggi.simplehttpproxy.io.SubInputStream;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class HttpHeader {
 
-    private final CaseInsensitiveHashMap<List<String>> headers;
+    private final HeaderMap headers;
     private String firstLine;
 
-    public HttpHeader(String firstLine, CaseInsensitiveHashMap<List<String>> headers) {
+    public HttpHeader(String firstLine, HeaderMap headers) {
         if (firstLine == null || headers == null) {
             throw new NullPointerException();
         }
@@ -34,31 +32,20 @@ public class HttpHeader {
         this.firstLine = firstLine;
     }
 
-    public Map<String, List<String>> getHeaders() {
+    public HeaderMap getHeaders() {
         return headers;
     }
 
     public void addHeader(String key, String val) {
-        List<String> h = headers.get(key);
-        if (h == null) {
-            setHeader(key, val);
-        } else {
-            h.add(val);
-        }
+        headers.add(key, val);
     }
 
     public void setHeader(String key, String val) {
-        List<String> h = new ArrayList<>();
-        h.add(val);
-        headers.put(key, h);
+        headers.set(key, val);
     }
 
     public String getHeader(String key) {
-        List<String> g = headers.get(key);
-        if (g == null || g.isEmpty()) {
-            return null;
-        }
-        return g.get(0);
+        return headers.get(key);
     }
 
     public void deleteHeader(String key) {
@@ -66,7 +53,7 @@ public class HttpHeader {
     }
 
     public List<String> getHeaders(String key) {
-        return headers.get(key);
+        return headers.getAll(key);
     }
 
     public InputStream wrapInputStream(InputStream in) {
@@ -75,21 +62,16 @@ public class HttpHeader {
         }
         long contentLength = -1L;
         boolean chunked = false;
-        List<String> cl = headers.get("Content-Length");
-        if (cl != null && !cl.isEmpty()) {
+        String cl = headers.get("Content-Length");
+        if (cl != null) {
             try {
-                contentLength = Long.parseLong(cl.get(0));
+                contentLength = Long.parseLong(cl);
             } catch (Exception e) {
             }
         }
-        List<String> te = headers.get("Transfer-Encoding");
-        if (te != null && !te.isEmpty()) {
-            try {
-                if (te.get(0).equalsIgnoreCase("chunked")) {
-                    chunked = true;
-                }
-            } catch (Exception e) {
-            }
+        String te = headers.get("Transfer-Encoding");
+        if (te != null && te.equalsIgnoreCase("chunked")) {
+            chunked = true;
         }
         if (chunked) {
             return new ChunkedInputStream(in);
@@ -106,21 +88,16 @@ public class HttpHeader {
         }
         long contentLength = -1L;
         boolean chunked = false;
-        List<String> cl = headers.get("Content-Length");
-        if (cl != null && !cl.isEmpty()) {
+        String cl = headers.get("Content-Length");
+        if (cl != null) {
             try {
-                contentLength = Long.parseLong(cl.get(0));
+                contentLength = Long.parseLong(cl);
             } catch (Exception e) {
             }
         }
-        List<String> te = headers.get("Transfer-Encoding");
-        if (te != null && !te.isEmpty()) {
-            try {
-                if (te.get(0).equalsIgnoreCase("chunked")) {
-                    chunked = true;
-                }
-            } catch (Exception e) {
-            }
+        String te = headers.get("Transfer-Encoding");
+        if (te != null && te.equalsIgnoreCase("chunked")) {
+            chunked = true;
         }
         if (chunked) {
             return new ChunkedOutputStream(out);
@@ -132,26 +109,10 @@ public class HttpHeader {
     }
 
     public String getCFRay() {
-        try {
-            for (Map.Entry<String, List<String>> en : headers.entrySet()) {
-                if (en.getKey().equalsIgnoreCase("CF-Ray")) {
-                    return en.getValue().get(0);
-                }
-            }
-        } catch (Exception e) {
-        }
-        return null;
+        return headers.get("CF-Ray");
     }
 
     public HttpHeader copy() {
-        CaseInsensitiveHashMap<List<String>> newHeaders = new CaseInsensitiveHashMap<>();
-        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
-            String key = header.getKey();
-            List<String> val = header.getValue();
-            List<String> headerItems = new ArrayList<>(val.size());
-            headerItems.addAll(val);
-            newHeaders.put(key, headerItems);
-        }
-        return new HttpHeader(firstLine, newHeaders);
+        return new HttpHeader(firstLine, headers.copy());
     }
 }
@@ -0,0 +1,92 @@
+package io.siggi.simplehttpproxy.util;
+
+import io.siggi.simplehttpproxy.ThreadCreator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters and gauges, periodically written to metrics.txt as
+ * name=value lines so they can be scraped or simply looked at.
+ */
+public class Metrics {
+
+    private static final Map<String, LongSupplier> metrics = new ConcurrentSkipListMap<>();
+    private static boolean started = false;
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        Counter counter = new Counter();
+        metrics.put(name, counter::get);
+        return counter;
+    }
+
+    public static void gauge(String name, LongSupplier supplier) {
+        metrics.put(name, supplier);
+    }
+
+    public static synchronized void start(File file, long interval) {
+        if (started) {
+            return;
+        }
+        started = true;
+        ThreadCreator.createThread(() -> {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                    out.write(snapshot().getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    continue;
+                }
+                tmpFile.renameTo(file);
+            }
+        }, "Metrics", true, false).start();
+    }
+
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongSupplier> entry : metrics.entrySet()) {
+            long value;
+            try {
+                value = entry.getValue().getAsLong();
+            } catch (Exception e) {
+                continue;
+            }
+            sb.append(entry.getKey()).append("=").append(value).append("\n");
+        }
+        return sb.toString();
+    }
+
+    public static final class Counter {
+
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public void add(long amount) {
+            value.addAndGet(amount);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+}
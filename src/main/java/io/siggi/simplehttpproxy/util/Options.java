@@ -0,0 +1,72 @@
+package io.siggi.simplehttpproxy.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide tuning options, read once at startup from options.txt.
+ * <p>
+ * Each line is key=value, everything after a # is a comment. Keys are case
+ * insensitive. Unknown keys are ignored and missing ones fall back to the
+ * default passed in by the caller.
+ */
+public class Options {
+
+    private static volatile Map<String, String> options = new HashMap<>();
+
+    private Options() {
+    }
+
+    public static void load(File file) {
+        Map<String, String> newOptions = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int hashPos = line.indexOf("#");
+                if (hashPos >= 0) {
+                    line = line.substring(0, hashPos);
+                }
+                int p = line.indexOf("=");
+                if (p == -1) {
+                    continue;
+                }
+                newOptions.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
+            }
+        } catch (IOException ioe) {
+        }
+        options = newOptions;
+    }
+
+    public static String get(String key, String defaultValue) {
+        String value = options.get(key.toLowerCase());
+        return value == null ? defaultValue : value;
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(get(key, null));
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(get(key, null));
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Util.parseBoolean(value);
+    }
+}
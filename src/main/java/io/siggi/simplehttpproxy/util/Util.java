@@ -1,6 +1,7 @@
 package io.siggi.simplehttpproxy.util;
 
 import io.siggi.simplehttpproxy.exception.TooBigException;
+import io.siggi.simplehttpproxy.io.BufferPool;
 
 import javax.net.ssl.SSLSocketFactory;
 import java.io.ByteArrayOutputStream;
@@ -107,16 +108,7 @@ public class Util {
     }
 
     public static void writeHeaders(Map<String, List<String>> headers, OutputStream out) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
-            String header = entry.getKey();
-            List<String> list = entry.getValue();
-            for (String str : list) {
-                writeCRLF(header + ": " + str, baos);
-            }
-        }
-        writeCRLF("", baos);
-        out.write(baos.toByteArray());
+        new HeaderWriter().headers(headers).end().writeTo(out);
     }
 
     public static void writeCRLF(String str, OutputStream out) throws IOException {
@@ -124,25 +116,25 @@ public class Util {
     }
 
     public static HttpHeader readHeader(InputStream in, int sizeLimit) throws IOException {
-        String firstLine;
-        do {
-            firstLine = readCRLF(in, sizeLimit);
-            if (firstLine == null) {
-                return null;
-            }
-        } while (firstLine.isEmpty());
-        CaseInsensitiveHashMap<List<String>> headers = readHeaders(in, sizeLimit);
-        if (headers == null) {
-            return null;
-        }
-        return new HttpHeader(firstLine, headers);
+        return new HeaderParser().read(in, sizeLimit);
     }
 
     public static void writeHeader(OutputStream out, HttpHeader header) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        writeCRLF(header.getFirstLine(), baos);
-        writeHeaders(header.getHeaders(), baos);
-        out.write(baos.toByteArray());
+        new HeaderWriter().header(header).writeTo(out);
+    }
+
+    /**
+     * Whether a socket accepted through a ServerSocketChannel can be read and
+     * written by two threads at the same time. Before Java 13 the socket
+     * adaptor makes a write wait for a blocked read to time out.
+     */
+    public static boolean hasConcurrentChannelSockets() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            return !version.startsWith("1.") && Integer.parseInt(version.split("\\.")[0]) >= 13;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
     public static Socket connect(String addr) throws IOException {
@@ -188,13 +180,44 @@ public class Util {
     }
 
     public static void copy(InputStream in, OutputStream out, CopyActivityMonitor monitor) throws IOException {
-        byte[] buffer = new byte[4096];
-        int c;
-        while ((c = in.read(buffer, 0, buffer.length)) != -1) {
-            if (monitor != null) monitor.copyActivity(c);
-            if (out != null) {
+        copy(in, out, BufferPool.SMALL, monitor);
+    }
+
+    /**
+     * Copy through a buffer from the BufferPool of at least the given size.
+     */
+    public static void copy(InputStream in, OutputStream out, int bufferSize, CopyActivityMonitor monitor) throws IOException {
+        byte[] buffer = BufferPool.acquire(bufferSize);
+        try {
+            int c;
+            while ((c = in.read(buffer, 0, buffer.length)) != -1) {
+                if (monitor != null) monitor.copyActivity(c);
+                if (out != null) {
+                    out.write(buffer, 0, c);
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Copy a body that may be trickling in, flushing the output whenever the
+     * input has nothing more ready so that a stream that gathers writes, like
+     * ChunkedOutputStream, doesn't hold back data that has already arrived.
+     */
+    public static void copyStreaming(InputStream in, OutputStream out, int bufferSize) throws IOException {
+        byte[] buffer = BufferPool.acquire(bufferSize);
+        try {
+            int c;
+            while ((c = in.read(buffer, 0, buffer.length)) != -1) {
                 out.write(buffer, 0, c);
+                if (in.available() == 0) {
+                    out.flush();
+                }
             }
+        } finally {
+            BufferPool.release(buffer);
         }
     }
 
@@ -204,12 +227,16 @@ public class Util {
     }
 
     public static void copyToDigest(InputStream in, MessageDigest digest) throws IOException {
-        byte[] buffer = new byte[4096];
-        int c;
-        while ((c = in.read(buffer, 0, buffer.length)) != -1) {
-            if (digest != null) {
-                digest.update(buffer, 0, c);
+        byte[] buffer = BufferPool.acquire(BufferPool.SMALL);
+        try {
+            int c;
+            while ((c = in.read(buffer, 0, buffer.length)) != -1) {
+                if (digest != null) {
+                    digest.update(buffer, 0, c);
+                }
             }
+        } finally {
+            BufferPool.release(buffer);
         }
     }
 
@@ -0,0 +1,32 @@
+package io.siggi.simplehttpproxy;
+
+/**
+ * Runs everything that handles a client connection on a virtual thread.
+ * Background threads such as the logger and cache cleanup are left on
+ * platform threads.
+ * <p>
+ * Only part of the jdk21 build, it is selected at runtime with
+ * threads=virtual in options.txt.
+ */
+public class VirtualThreadCreator extends ThreadCreator {
+
+    private final ThreadCreator platformCreator;
+
+    public VirtualThreadCreator(ThreadCreator platformCreator) {
+        this.platformCreator = platformCreator;
+    }
+
+    @Override
+    protected Thread createThreadImplementation(Runnable runnable, String name, boolean daemon, boolean handlingClient) {
+        if (!handlingClient) {
+            return platformCreator.createThreadImplementation(runnable, name, daemon, false);
+        }
+        if (runnable == null) throw new NullPointerException("runnable");
+        // virtual threads are always daemon threads
+        Thread.Builder builder = Thread.ofVirtual();
+        if (name != null) {
+            builder = builder.name(name);
+        }
+        return builder.unstarted(runnable);
+    }
+}